@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.event;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * An event happening on a Netflux channel, delivered asynchronously to the {@link NetfluxEventSink}s.
+ * 
+ * @version $Id$
+ * @since 1.7
+ */
+@Unstable
+public class NetfluxEvent
+{
+    /**
+     * The event types.
+     */
+    public enum Type
+    {
+        /**
+         * A user joined the channel.
+         */
+        JOIN,
+
+        /**
+         * A user left the channel, or was disconnected.
+         */
+        LEAVE,
+
+        /**
+         * A message was sent to the channel.
+         */
+        MESSAGE,
+
+        /**
+         * A checkpoint (a message containing the full content of the channel) was sent to the channel.
+         */
+        CHECKPOINT
+    }
+
+    private final Type type;
+
+    private final long timestamp;
+
+    private final String channelKey;
+
+    private final String channelName;
+
+    private final String channelType;
+
+    private final String userName;
+
+    private final String content;
+
+    /**
+     * @param type the event type
+     * @param timestamp the time when the event happened, in milliseconds
+     * @param channelKey the key of the channel
+     * @param channelName the name of the channel (the document identifier for the channels created for a document)
+     * @param channelType the type of the channel ("rtwiki", "rtwysiwyg", "events", etc.)
+     * @param userName the Netflux name of the user at the origin of the event
+     * @param content the message, as relayed to the channel members
+     */
+    public NetfluxEvent(Type type, long timestamp, String channelKey, String channelName, String channelType,
+        String userName, String content)
+    {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.channelKey = channelKey;
+        this.channelName = channelName;
+        this.channelType = channelType;
+        this.userName = userName;
+        this.content = content;
+    }
+
+    /**
+     * @return the event type
+     */
+    public Type getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * @return the time when the event happened, in milliseconds
+     */
+    public long getTimestamp()
+    {
+        return this.timestamp;
+    }
+
+    /**
+     * @return the key of the channel
+     */
+    public String getChannelKey()
+    {
+        return this.channelKey;
+    }
+
+    /**
+     * @return the name of the channel (the document identifier for the channels created for a document)
+     */
+    public String getChannelName()
+    {
+        return this.channelName;
+    }
+
+    /**
+     * @return the type of the channel ("rtwiki", "rtwysiwyg", "events", etc.)
+     */
+    public String getChannelType()
+    {
+        return this.channelType;
+    }
+
+    /**
+     * @return the Netflux name of the user at the origin of the event
+     */
+    public String getUserName()
+    {
+        return this.userName;
+    }
+
+    /**
+     * @return the message, as relayed to the channel members
+     */
+    public String getContent()
+    {
+        return this.content;
+    }
+}
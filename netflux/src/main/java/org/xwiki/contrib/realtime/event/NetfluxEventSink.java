@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.event;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Receives the events happening on the Netflux channels (audit logging, draft saving, analytics, etc.). The events
+ * are delivered asynchronously, in batches, by a thread dedicated to each sink, so a slow sink doesn't slow down the
+ * realtime editors. Events are dropped when a sink can't keep up.
+ * 
+ * @version $Id$
+ * @since 1.7
+ */
+@Role
+@Unstable
+public interface NetfluxEventSink
+{
+    /**
+     * Handle a batch of events.
+     * 
+     * @param events the events, in the order they happened
+     */
+    void onEvents(List<NetfluxEvent> events);
+}
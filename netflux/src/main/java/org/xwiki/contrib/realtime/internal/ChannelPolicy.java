@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+/**
+ * How the channels of a given type keep their history and how long they stay loaded, see
+ * {@link NetfluxConfiguration#getChannelPolicy(String)}.
+ * 
+ * @version $Id$
+ */
+public final class ChannelPolicy
+{
+    private final boolean history;
+
+    private final boolean historyKeeper;
+
+    private final int maxHistoryEntries;
+
+    private final long maxHistoryBytes;
+
+    private final long idleTimeout;
+
+    /**
+     * @param history whether the messages are kept in the channel history
+     * @param historyKeeper whether the history keeper pseudo-user is a member of the channel
+     * @param maxHistoryEntries the maximum number of messages in the history, {@code 0} for no limit
+     * @param maxHistoryBytes the maximum size of the history, {@code 0} for no limit
+     * @param idleTimeout the number of milliseconds after which an empty channel is unloaded
+     */
+    public ChannelPolicy(boolean history, boolean historyKeeper, int maxHistoryEntries, long maxHistoryBytes,
+        long idleTimeout)
+    {
+        this.history = history;
+        this.historyKeeper = historyKeeper;
+        this.maxHistoryEntries = maxHistoryEntries;
+        this.maxHistoryBytes = maxHistoryBytes;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return {@code true} if the messages are kept in the channel history
+     */
+    public boolean isHistoryEnabled()
+    {
+        return this.history;
+    }
+
+    /**
+     * @return {@code true} if the history keeper pseudo-user is a member of the channel, which tells the clients that
+     *         they can ask it for the history
+     */
+    public boolean isHistoryKeeperEnabled()
+    {
+        return this.historyKeeper;
+    }
+
+    /**
+     * @return the maximum number of messages in the history, {@code 0} for no limit
+     */
+    public int getMaxHistoryEntries()
+    {
+        return this.maxHistoryEntries;
+    }
+
+    /**
+     * @return the maximum size of the history (the length of its messages), {@code 0} for no limit
+     */
+    public long getMaxHistoryBytes()
+    {
+        return this.maxHistoryBytes;
+    }
+
+    /**
+     * @return the number of milliseconds after which an empty channel is unloaded
+     */
+    public long getIdleTimeout()
+    {
+        return this.idleTimeout;
+    }
+
+    /**
+     * @param entries the number of messages in the history
+     * @param bytes the size of the history
+     * @return {@code true} if a history of the given size exceeds the limits of this policy
+     */
+    public boolean isExceeded(int entries, long bytes)
+    {
+        return (this.maxHistoryEntries > 0 && entries > this.maxHistoryEntries)
+            || (this.maxHistoryBytes > 0 && bytes > this.maxHistoryBytes);
+    }
+}
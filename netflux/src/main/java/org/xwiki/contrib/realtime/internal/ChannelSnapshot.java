@@ -0,0 +1,239 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.xwiki.contrib.realtime.internal.NetfluxBackend.Channel;
+
+/**
+ * Binary snapshot of the channels, used to keep the channels across restarts. The file starts with the history of each
+ * channel and ends with an index listing the channel descriptors along with the position of their history, so that the
+ * channels can be registered by reading only the index and their history read when they are joined:
+ * 
+ * <pre>
+ * history*: messageCount:int (length:int utf8Bytes)*
+ * index:    channelCount:int (key:utf hasWiki:boolean wiki:utf? hasName:boolean name:utf? hasType:boolean type:utf?
+ *           offset:long)*
+ * trailer:  indexOffset:long MAGIC:int
+ * </pre>
+ * 
+ * @version $Id$
+ */
+public class ChannelSnapshot
+{
+    private static final int MAGIC = 0x4e465832;
+
+    /**
+     * The snapshots written before the channels were partitioned by wiki don't have the wiki in their index.
+     */
+    private static final int MAGIC_WITHOUT_WIKI = 0x4e465831;
+
+    private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES;
+
+    private final File file;
+
+    /**
+     * A channel descriptor read from the snapshot index.
+     */
+    public static class Entry
+    {
+        /**
+         * The channel key.
+         */
+        public final String key;
+
+        /**
+         * The channel wiki.
+         */
+        public final String wiki;
+
+        /**
+         * The channel name.
+         */
+        public final String name;
+
+        /**
+         * The channel type.
+         */
+        public final String type;
+
+        /**
+         * The position of the channel history in the snapshot file.
+         */
+        public final long offset;
+
+        Entry(String key, String wiki, String name, String type, long offset)
+        {
+            this.key = key;
+            this.wiki = wiki;
+            this.name = name;
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * @param file the snapshot file
+     */
+    public ChannelSnapshot(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Write a snapshot.
+     * 
+     * @param file the file where to write the snapshot
+     * @param channels the channels to save
+     * @param history provides the history of a channel
+     * @throws IOException if the snapshot can't be written
+     */
+    public static void write(File file, Collection<Channel> channels, Function<Channel, List<String>> history)
+        throws IOException
+    {
+        Map<Channel, Long> offsets = new LinkedHashMap<>();
+        long offset = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (Channel chan : channels) {
+                offsets.put(chan, offset);
+                List<String> messages = history.apply(chan);
+                out.writeInt(messages.size());
+                offset += Integer.BYTES;
+                for (String message : messages) {
+                    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    offset += Integer.BYTES + bytes.length;
+                }
+            }
+            out.writeInt(offsets.size());
+            for (Map.Entry<Channel, Long> entry : offsets.entrySet()) {
+                Channel chan = entry.getKey();
+                out.writeUTF(chan.key);
+                writeNullableUTF(out, chan.wiki);
+                writeNullableUTF(out, chan.name);
+                writeNullableUTF(out, chan.type);
+                out.writeLong(entry.getValue());
+            }
+            out.writeLong(offset);
+            out.writeInt(MAGIC);
+        }
+    }
+
+    /**
+     * Stream the index of the snapshot.
+     * 
+     * @param consumer called for each channel of the snapshot
+     * @throws IOException if the snapshot can't be read
+     */
+    public void readIndex(Consumer<Entry> consumer) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+            raf.seek(raf.length() - TRAILER_SIZE);
+            long indexOffset = raf.readLong();
+            int magic = raf.readInt();
+            if (magic != MAGIC && magic != MAGIC_WITHOUT_WIKI) {
+                throw new IOException("Invalid snapshot file [" + this.file + "]");
+            }
+            raf.seek(indexOffset);
+            DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String key = in.readUTF();
+                String wiki = (magic == MAGIC) ? readNullableUTF(in) : null;
+                String name = readNullableUTF(in);
+                String type = readNullableUTF(in);
+                consumer.accept(new Entry(key, wiki, name, type, in.readLong()));
+            }
+        }
+    }
+
+    /**
+     * Read the history of a channel.
+     * 
+     * @param offset the position of the history in the snapshot file, see {@link Entry#offset}
+     * @return the channel history
+     * @throws IOException if the snapshot can't be read
+     */
+    public List<String> readHistory(long offset) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+            raf.seek(offset);
+            DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+            int size = in.readInt();
+            List<String> messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                messages.add(readString(in));
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * Delete the snapshot file, once its content is not needed anymore.
+     * 
+     * @throws IOException if the file can't be deleted
+     */
+    public void delete() throws IOException
+    {
+        Files.deleteIfExists(this.file.toPath());
+    }
+
+    private static String readString(DataInput in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInput in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * A set backed by an array scanned linearly, for the small sets that are kept for each connection (a user has joined
+ * one or two channels most of the time). It takes a few dozen bytes where a {@link java.util.HashSet} takes a few
+ * hundreds, and nothing more than the set itself while it's empty. It's not thread safe.
+ * 
+ * @param <E> the type of the elements
+ * @version $Id$
+ */
+final class CompactSet<E> extends AbstractSet<E>
+{
+    private static final Object[] EMPTY = {};
+
+    private static final int FIRST_CAPACITY = 2;
+
+    private Object[] elements = EMPTY;
+
+    private int size;
+
+    private int modCount;
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o)
+    {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean add(E e)
+    {
+        if (indexOf(e) >= 0) {
+            return false;
+        }
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(FIRST_CAPACITY, size * 2));
+        }
+        elements[size++] = e;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o)
+    {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public void clear()
+    {
+        elements = EMPTY;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<E> iterator()
+    {
+        return new Iterator<E>()
+        {
+            private int next;
+
+            private int last = -1;
+
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next()
+            {
+                if (expectedModCount != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = next++;
+                return (E) elements[last];
+            }
+
+            @Override
+            public void remove()
+            {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (expectedModCount != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(last);
+                next = last;
+                last = -1;
+                expectedModCount = modCount;
+            }
+        };
+    }
+
+    private int indexOf(Object o)
+    {
+        for (int i = 0; i < size; i++) {
+            if (Objects.equals(elements[i], o)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int index)
+    {
+        size--;
+        if (size == 0) {
+            // Release the array of the users that left all their channels.
+            elements = EMPTY;
+        } else {
+            System.arraycopy(elements, index + 1, elements, index, size - index);
+            elements[size] = null;
+        }
+        modCount++;
+    }
+}
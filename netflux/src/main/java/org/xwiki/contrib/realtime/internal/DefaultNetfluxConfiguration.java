@@ -0,0 +1,173 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.EnumUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.realtime.internal.NetfluxEventPipeline.OverflowPolicy;
+
+/**
+ * Default {@link NetfluxConfiguration} implementation, reading the options from {@code xwiki.properties}.
+ * 
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultNetfluxConfiguration implements NetfluxConfiguration
+{
+    private static final String PREFIX = "realtime.netflux.";
+
+    private static final long DEFAULT_CHANNEL_IDLE_TIMEOUT = 10L * 60 * 1000;
+
+    private static final String EVENTS_PREFIX = PREFIX + "events.";
+
+    private static final String FAN_OUT_PREFIX = PREFIX + "fanOut.";
+
+    private static final String CAPTURE_PREFIX = PREFIX + "capture.";
+
+    private static final String CHANNEL_PREFIX = PREFIX + "channel.";
+
+    private static final String WIKI_PREFIX = PREFIX + "wiki.";
+
+    private static final String DEFAULT_SCOPE = "default";
+
+    @Inject
+    @Named("xwikiproperties")
+    private Provider<ConfigurationSource> configuration;
+
+    @Override
+    public long getChannelIdleTimeout()
+    {
+        return this.configuration.get().getProperty(PREFIX + "channelIdleTimeout", DEFAULT_CHANNEL_IDLE_TIMEOUT);
+    }
+
+    @Override
+    public int getEventBufferSize()
+    {
+        return this.configuration.get().getProperty(EVENTS_PREFIX + "bufferSize", 8192);
+    }
+
+    @Override
+    public int getEventBatchSize()
+    {
+        return this.configuration.get().getProperty(EVENTS_PREFIX + "batchSize", 256);
+    }
+
+    @Override
+    public OverflowPolicy getEventOverflowPolicy()
+    {
+        String policy = this.configuration.get().getProperty(EVENTS_PREFIX + "overflow", String.class);
+        return EnumUtils.getEnumIgnoreCase(OverflowPolicy.class, policy, OverflowPolicy.DROP_NEWEST);
+    }
+
+    @Override
+    public int getParallelFanOutThreshold()
+    {
+        return this.configuration.get().getProperty(FAN_OUT_PREFIX + "parallelThreshold", 64);
+    }
+
+    @Override
+    public int getFanOutThreads()
+    {
+        return this.configuration.get().getProperty(FAN_OUT_PREFIX + "threads",
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public long getMembershipCoalescingWindow()
+    {
+        return this.configuration.get().getProperty(PREFIX + "membership.coalescingWindow", 50L);
+    }
+
+    @Override
+    public int getMaxFrameSize()
+    {
+        return this.configuration.get().getProperty(PREFIX + "maxFrameSize", 16 * 1024 * 1024);
+    }
+
+    @Override
+    public int getLargeFrameThreshold()
+    {
+        return this.configuration.get().getProperty(PREFIX + "largeFrameThreshold", 64 * 1024);
+    }
+
+    @Override
+    public long getOffHeapHistorySize()
+    {
+        return this.configuration.get().getProperty(PREFIX + "offHeapHistorySize", 256L * 1024 * 1024);
+    }
+
+    @Override
+    public boolean isCaptureEnabled()
+    {
+        return this.configuration.get().getProperty(CAPTURE_PREFIX + "enabled", false);
+    }
+
+    @Override
+    public boolean isCaptureRedacted()
+    {
+        return this.configuration.get().getProperty(CAPTURE_PREFIX + "redact", false);
+    }
+
+    @Override
+    public long getCaptureMaxSize()
+    {
+        return this.configuration.get().getProperty(CAPTURE_PREFIX + "maxSize", 1024L * 1024 * 1024);
+    }
+
+    @Override
+    public ChannelPolicy getChannelPolicy(String type)
+    {
+        ConfigurationSource source = this.configuration.get();
+        return new ChannelPolicy(getScopedProperty(source, CHANNEL_PREFIX, type, "history", true),
+            getScopedProperty(source, CHANNEL_PREFIX, type, "historyKeeper", true),
+            getScopedProperty(source, CHANNEL_PREFIX, type, "maxHistoryEntries", 0),
+            getScopedProperty(source, CHANNEL_PREFIX, type, "maxHistoryBytes", 0L),
+            getScopedProperty(source, CHANNEL_PREFIX, type, "idleTimeout", getChannelIdleTimeout()));
+    }
+
+    @Override
+    public int getWikiMaxChannels(String wiki)
+    {
+        return getScopedProperty(this.configuration.get(), WIKI_PREFIX, wiki, "maxChannels", 0);
+    }
+
+    @Override
+    public long getWikiMaxHistoryBytes(String wiki)
+    {
+        return getScopedProperty(this.configuration.get(), WIKI_PREFIX, wiki, "maxHistoryBytes", 0L);
+    }
+
+    /**
+     * Read a property of a channel type or a wiki, falling back on the default value of all the types or wikis.
+     */
+    private <T> T getScopedProperty(ConfigurationSource source, String prefix, String scope, String name,
+        T defaultValue)
+    {
+        T value = source.getProperty(prefix + DEFAULT_SCOPE + '.' + name, defaultValue);
+        return (scope == null) ? value : source.getProperty(prefix + scope + '.' + name, value);
+    }
+}
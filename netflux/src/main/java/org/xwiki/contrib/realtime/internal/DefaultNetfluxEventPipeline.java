@@ -0,0 +1,229 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.realtime.event.NetfluxEvent;
+import org.xwiki.contrib.realtime.event.NetfluxEventSink;
+
+/**
+ * Default {@link NetfluxEventPipeline} implementation. Each sink gets its own {@link EventRingBuffer} drained by its
+ * own thread, so a slow sink only delays (and possibly loses) its own events.
+ * 
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultNetfluxEventPipeline implements NetfluxEventPipeline, Initializable, Disposable
+{
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long STOP_TIMEOUT_MILLISECONDS = 5000;
+
+    @Inject
+    private ComponentManager componentManager;
+
+    @Inject
+    private NetfluxConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private final List<SinkWorker> workers = new ArrayList<>();
+
+    private OverflowPolicy overflowPolicy;
+
+    private volatile boolean stopped;
+
+    /**
+     * Delivers the events of a sink.
+     */
+    private final class SinkWorker implements Runnable
+    {
+        private final String hint;
+
+        private final NetfluxEventSink sink;
+
+        private final EventRingBuffer<NetfluxEvent> buffer;
+
+        private final Thread thread;
+
+        private final LongAdder published = new LongAdder();
+
+        private final LongAdder dropped = new LongAdder();
+
+        private volatile long delivered;
+
+        private volatile long failed;
+
+        private volatile long lag;
+
+        private volatile boolean waiting;
+
+        SinkWorker(String hint, NetfluxEventSink sink)
+        {
+            this.hint = hint;
+            this.sink = sink;
+            this.buffer = new EventRingBuffer<>(configuration.getEventBufferSize());
+            this.thread = new Thread(this, "Netflux event sink [" + hint + "]");
+            this.thread.setDaemon(true);
+        }
+
+        void offer(NetfluxEvent event)
+        {
+            this.published.increment();
+            if (!this.buffer.offer(event)) {
+                if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                    this.buffer.poll();
+                    if (!this.buffer.offer(event)) {
+                        // Another producer took the freed slot.
+                        this.dropped.increment();
+                    }
+                }
+                this.dropped.increment();
+            }
+            if (this.waiting) {
+                LockSupport.unpark(this.thread);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            int batchSize = configuration.getEventBatchSize();
+            List<NetfluxEvent> batch = new ArrayList<>(batchSize);
+            while (true) {
+                this.buffer.drainTo(batch, batchSize);
+                if (batch.isEmpty()) {
+                    if (stopped) {
+                        return;
+                    }
+                    this.waiting = true;
+                    if (this.buffer.size() == 0) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    this.waiting = false;
+                } else {
+                    deliver(batch);
+                    batch.clear();
+                }
+            }
+        }
+
+        private void deliver(List<NetfluxEvent> batch)
+        {
+            this.lag = System.currentTimeMillis() - batch.get(0).getTimestamp();
+            try {
+                this.sink.onEvents(new ArrayList<>(batch));
+                this.delivered += batch.size();
+            } catch (Exception e) {
+                this.failed += batch.size();
+                logger.warn("Netflux event sink [{}] failed to handle [{}] events.", this.hint, batch.size(), e);
+            }
+        }
+
+        Map<String, Object> getStatistics()
+        {
+            Map<String, Object> statistics = new HashMap<>();
+            statistics.put("sink", this.hint);
+            statistics.put("capacity", this.buffer.capacity());
+            statistics.put("pending", this.buffer.size());
+            statistics.put("published", this.published.sum());
+            statistics.put("dropped", this.dropped.sum());
+            statistics.put("delivered", this.delivered);
+            statistics.put("failed", this.failed);
+            statistics.put("lag", this.lag);
+            return statistics;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.overflowPolicy = this.configuration.getEventOverflowPolicy();
+        Map<String, NetfluxEventSink> sinks;
+        try {
+            sinks = this.componentManager.getInstanceMap(NetfluxEventSink.class);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException("Failed to lookup the Netflux event sinks.", e);
+        }
+        for (Map.Entry<String, NetfluxEventSink> entry : sinks.entrySet()) {
+            SinkWorker worker = new SinkWorker(entry.getKey(), entry.getValue());
+            this.workers.add(worker);
+            worker.thread.start();
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.stopped = true;
+        for (SinkWorker worker : this.workers) {
+            LockSupport.unpark(worker.thread);
+            try {
+                worker.thread.join(STOP_TIMEOUT_MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return !this.workers.isEmpty() && !this.stopped;
+    }
+
+    @Override
+    public void publish(NetfluxEvent event)
+    {
+        for (SinkWorker worker : this.workers) {
+            worker.offer(event);
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> getStatistics()
+    {
+        List<Map<String, Object>> statistics = new ArrayList<>();
+        for (SinkWorker worker : this.workers) {
+            statistics.add(worker.getStatistics());
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
+
+/**
+ * Stores the channel history in files located in the temporary directory.
+ * 
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultNetfluxHistoryStore implements NetfluxHistoryStore
+{
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
+    @Override
+    public List<String> load(String key)
+    {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return Collections.emptyList();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int size = in.readInt();
+            List<String> messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                messages.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return messages;
+        } catch (IOException e) {
+            this.logger.warn("Failed to load the history of channel [{}].", key, e);
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void save(String key, List<String> messages)
+    {
+        File file = getFile(key);
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(messages.size());
+            for (String message : messages) {
+                byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to save the history of channel [{}].", key, e);
+        }
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        File file = getFile(key);
+        if (file.exists() && !file.delete()) {
+            this.logger.warn("Failed to remove the history of channel [{}].", key);
+        }
+    }
+
+    private File getFile(String key)
+    {
+        return new File(new File(this.environment.getTemporaryDirectory(), "netflux/history"), key);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct (off-heap) byte buffers used to store the large history entries outside of the Java heap. Buffers are
+ * allocated by power of two size classes and are kept in the pool when released. The total size of the allocated
+ * buffers is bounded: when the limit is reached, {@link #acquire(int)} returns {@code null} and the caller keeps the
+ * data on the heap.
+ * 
+ * @version $Id$
+ */
+public class DirectBufferPool
+{
+    private static final int SIZE_CLASSES = Integer.SIZE;
+
+    private final int threshold;
+
+    private final long maxBytes;
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final List<Queue<ByteBuffer>> free = new ArrayList<>(SIZE_CLASSES);
+
+    /**
+     * @param threshold the minimum size of the data to store off-heap
+     * @param maxBytes the maximum total size of the allocated buffers
+     */
+    public DirectBufferPool(int threshold, long maxBytes)
+    {
+        this.threshold = threshold;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            this.free.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * @return the minimum size of the data to store off-heap
+     */
+    public int getThreshold()
+    {
+        return this.threshold;
+    }
+
+    /**
+     * Get a buffer from the pool, allocating it if needed.
+     * 
+     * @param size the number of bytes needed
+     * @return a buffer whose limit is the requested size, or {@code null} if the pool limit is reached
+     */
+    public ByteBuffer acquire(int size)
+    {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = this.free.get(sizeClass).poll();
+        if (buffer == null) {
+            int capacity = 1 << sizeClass;
+            if (this.allocatedBytes.addAndGet(capacity) > this.maxBytes) {
+                this.allocatedBytes.addAndGet(-capacity);
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        this.usedBytes.addAndGet(buffer.capacity());
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool.
+     * 
+     * @param buffer a buffer obtained from {@link #acquire(int)}
+     */
+    public void release(ByteBuffer buffer)
+    {
+        this.usedBytes.addAndGet(-buffer.capacity());
+        this.free.get(sizeClass(buffer.capacity())).offer(buffer);
+    }
+
+    /**
+     * @return the total size of the allocated buffers
+     */
+    public long getAllocatedBytes()
+    {
+        return this.allocatedBytes.get();
+    }
+
+    /**
+     * @return the total size of the buffers currently in use
+     */
+    public long getUsedBytes()
+    {
+        return this.usedBytes.get();
+    }
+
+    private static int sizeClass(int size)
+    {
+        return (size <= 1) ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free multi-producer multi-consumer ring buffer. Each slot carries a sequence number telling whether
+ * it is ready to be written or read for a given lap, so producers and consumers only contend on their own position
+ * counter.
+ * 
+ * @param <E> the type of the elements
+ * @version $Id$
+ */
+public class EventRingBuffer<E>
+{
+    private final AtomicReferenceArray<E> slots;
+
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final AtomicLong writePosition = new AtomicLong();
+
+    private final AtomicLong readPosition = new AtomicLong();
+
+    /**
+     * @param capacity the minimum capacity of the buffer, rounded up to the next power of two
+     */
+    public EventRingBuffer(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Add an element at the end of the buffer.
+     * 
+     * @param element the element to add
+     * @return {@code true} if the element was added, {@code false} if the buffer is full
+     */
+    public boolean offer(E element)
+    {
+        long position = this.writePosition.get();
+        while (true) {
+            int index = (int) (position & this.mask);
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.writePosition.compareAndSet(position, position + 1)) {
+                    this.slots.set(index, element);
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+                position = this.writePosition.get();
+            } else if (difference < 0) {
+                // The slot still holds the element written during the previous lap.
+                return false;
+            } else {
+                position = this.writePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the element at the start of the buffer.
+     * 
+     * @return the removed element, or {@code null} if the buffer is empty
+     */
+    public E poll()
+    {
+        long position = this.readPosition.get();
+        while (true) {
+            int index = (int) (position & this.mask);
+            long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (this.readPosition.compareAndSet(position, position + 1)) {
+                    E element = this.slots.getAndSet(index, null);
+                    this.sequences.set(index, position + this.mask + 1);
+                    return element;
+                }
+                position = this.readPosition.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = this.readPosition.get();
+            }
+        }
+    }
+
+    /**
+     * Move elements from the start of the buffer to the given list.
+     * 
+     * @param target the list where to add the removed elements
+     * @param maxElements the maximum number of elements to remove
+     * @return the number of removed elements
+     */
+    public int drainTo(List<E> target, int maxElements)
+    {
+        int count = 0;
+        while (count < maxElements) {
+            E element = poll();
+            if (element == null) {
+                break;
+            }
+            target.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of elements in the buffer, possibly inaccurate while elements are added or removed
+     */
+    public int size()
+    {
+        return (int) Math.max(0, this.writePosition.get() - this.readPosition.get());
+    }
+
+    /**
+     * @return the maximum number of elements in the buffer
+     */
+    public int capacity()
+    {
+        return this.mask + 1;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.function.UnaryOperator;
+
+/**
+ * A message kept in the history of a channel. Large messages are stored off-heap, UTF-8 encoded, in a buffer obtained
+ * from a {@link DirectBufferPool}, so that long lived multi-megabyte checkpoints don't weigh on the garbage collector.
+ * <p>
+ * The forms of the message sent when the history is replayed (the decoded message and its {@link RawFrame}) are only
+ * weakly referenced: the users joining a channel at the same time share them, without keeping them in the heap.
+ * Entries are used with the backend lock held.
+ * 
+ * @version $Id$
+ */
+public final class HistoryEntry
+{
+    private final boolean checkpoint;
+
+    private final int size;
+
+    private final String text;
+
+    private ByteBuffer data;
+
+    private Reference<String> decoded;
+
+    private Reference<String> rawFrame;
+
+    private HistoryEntry(boolean checkpoint, int size, String text, ByteBuffer data)
+    {
+        this.checkpoint = checkpoint;
+        this.size = size;
+        this.text = text;
+        this.data = data;
+    }
+
+    /**
+     * Create a history entry, stored off-heap if the message is large enough and the pool is not exhausted.
+     * 
+     * @param text the message
+     * @param checkpoint whether the message is a checkpoint
+     * @param pool the pool providing the off-heap buffers, {@code null} to keep the message on the heap
+     * @return the history entry
+     */
+    public static HistoryEntry of(String text, boolean checkpoint, DirectBufferPool pool)
+    {
+        if (pool != null && text.length() >= pool.getThreshold()) {
+            ByteBuffer buffer = encode(text, pool);
+            if (buffer != null) {
+                return new HistoryEntry(checkpoint, buffer.remaining(), null, buffer);
+            }
+        }
+        return new HistoryEntry(checkpoint, utf8Length(text), text, null);
+    }
+
+    private static ByteBuffer encode(String text, DirectBufferPool pool)
+    {
+        ByteBuffer buffer = pool.acquire(utf8Length(text));
+        if (buffer != null) {
+            CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoder.encode(CharBuffer.wrap(text), buffer, true);
+            encoder.flush(buffer);
+            buffer.flip();
+        }
+        return buffer;
+    }
+
+    private static int utf8Length(String text)
+    {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the message, decoded from the off-heap buffer if needed
+     */
+    public String getText()
+    {
+        if (this.text != null) {
+            return this.text;
+        }
+        String result = (this.decoded != null) ? this.decoded.get() : null;
+        if (result == null) {
+            try {
+                result = StandardCharsets.UTF_8.newDecoder().decode(this.data.duplicate()).toString();
+            } catch (CharacterCodingException e) {
+                // Can't happen since the buffer was encoded from a String.
+                throw new IllegalStateException("Invalid history entry", e);
+            }
+            this.decoded = new WeakReference<>(result);
+        }
+        return result;
+    }
+
+    /**
+     * @param converter converts the message to a {@link RawFrame}, called only if the frame isn't cached
+     * @return the message as a {@link RawFrame}, or as is if it can't be converted
+     */
+    public String getRawFrame(UnaryOperator<String> converter)
+    {
+        String result = (this.rawFrame != null) ? this.rawFrame.get() : null;
+        if (result == null) {
+            String message = getText();
+            result = converter.apply(message);
+            // The messages that are not converted are already referenced.
+            this.rawFrame = (result == message) ? null : new WeakReference<>(result);
+        }
+        return result;
+    }
+
+    /**
+     * @return whether the message is a checkpoint
+     */
+    public boolean isCheckpoint()
+    {
+        return this.checkpoint;
+    }
+
+    /**
+     * @return the size of the message, UTF-8 encoded, in bytes
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return {@code true} if the message is stored off-heap
+     */
+    public boolean isOffHeap()
+    {
+        return this.text == null;
+    }
+
+    /**
+     * Give the off-heap buffer back to the pool. The entry must not be used anymore.
+     * 
+     * @param pool the pool that provided the buffer
+     */
+    public void release(DirectBufferPool pool)
+    {
+        if (this.data != null) {
+            pool.release(this.data);
+            this.data = null;
+        }
+    }
+}
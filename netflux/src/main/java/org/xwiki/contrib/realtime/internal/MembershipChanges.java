@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The JOIN and LEAVE of a channel members that are waiting to be sent, coalesced, to the clients supporting the
+ * {@link NetfluxExtension#MEMBERS} extension.
+ * 
+ * @version $Id$
+ */
+class MembershipChanges
+{
+    /**
+     * The users who joined the channel.
+     */
+    final Set<String> joined = new LinkedHashSet<>();
+
+    /**
+     * The users who left the channel.
+     */
+    final Set<String> left = new LinkedHashSet<>();
+
+    /**
+     * Record a JOIN.
+     * 
+     * @param userName the user who joined the channel
+     */
+    void join(String userName)
+    {
+        // Only the last change of a user matters.
+        left.remove(userName);
+        joined.add(userName);
+    }
+
+    /**
+     * Record a LEAVE.
+     * 
+     * @param userName the user who left the channel
+     */
+    void leave(String userName)
+    {
+        // Only the last change of a user matters. The user is still reported as leaving, since the clients that joined
+        // during the window already know about the user.
+        joined.remove(userName);
+        left.add(userName);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+/**
+ * Counts events over fixed one minute windows in order to expose an event rate without keeping the event times.
+ * 
+ * @version $Id$
+ */
+public class MessageRate
+{
+    private static final long WINDOW_MILLISECONDS = 60000;
+
+    private long windowStart;
+
+    private long currentCount;
+
+    private long previousCount;
+
+    private long totalCount;
+
+    /**
+     * Record an event.
+     * 
+     * @param now the current time, in milliseconds
+     */
+    public synchronized void mark(long now)
+    {
+        roll(now);
+        currentCount++;
+        totalCount++;
+    }
+
+    /**
+     * @param now the current time, in milliseconds
+     * @return the number of events recorded during the last complete minute
+     */
+    public synchronized long getPerMinute(long now)
+    {
+        roll(now);
+        return previousCount;
+    }
+
+    /**
+     * @return the number of events recorded since the creation of this counter
+     */
+    public synchronized long getTotal()
+    {
+        return totalCount;
+    }
+
+    private void roll(long now)
+    {
+        long elapsed = now - windowStart;
+        if (elapsed >= 2 * WINDOW_MILLISECONDS) {
+            // More than one window without any event.
+            previousCount = 0;
+            currentCount = 0;
+            windowStart = now;
+        } else if (elapsed >= WINDOW_MILLISECONDS) {
+            previousCount = currentCount;
+            currentCount = 0;
+            windowStart += WINDOW_MILLISECONDS;
+        }
+    }
+}
@@ -19,29 +19,67 @@
  */
 package org.xwiki.contrib.realtime.internal;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Queue;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.realtime.event.NetfluxEvent;
 import org.xwiki.contrib.websocket.WebSocket;
 import org.xwiki.contrib.websocket.WebSocketHandler;
+import org.xwiki.environment.Environment;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -52,11 +90,43 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 @Component
 @Singleton
 @Named("realtimeNetflux")
-public class NetfluxBackend implements WebSocketHandler
+public class NetfluxBackend implements WebSocketHandler, Initializable, Disposable
 {
     private static final long TIMEOUT_MILLISECONDS = 30000;
 
-    private static final boolean USE_HISTORY_KEEPER = true;
+    private static final long TIMEOUT_SWEEP_MILLISECONDS = TIMEOUT_MILLISECONDS / 3;
+
+    private static final String PING_MARKER = ",\"PING\"";
+
+    private static final String ACK_SUFFIX = ",\"ACK\"]";
+
+    private static final int MAX_PING_LENGTH = 64;
+
+    private static final int MAX_SEQUENCE_DIGITS = 9;
+
+    /**
+     * Generates the session ids, which are secrets shared with the clients, and the other identifiers. It's thread safe
+     * and seeded once.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final String SESSION_ID_ALGORITHM = "HmacSHA256";
+
+    private static final int SESSION_ID_BYTES = 16;
+
+    private static final String MSG_MARKER = "\"MSG\",\"";
+
+    private static final String CHECKPOINT_MARKER = "\"cp|[4,[";
+
+    private static final long CLEANUP_INTERVAL_MILLISECONDS = 60000;
+
+    private static final long RESTORE_WAIT_MILLISECONDS = 5000;
+
+    private static final String SNAPSHOT_FILE = "netflux/snapshot.bin";
+
+    private static final String CAPTURE_DIRECTORY = "netflux/capture";
+
+    private static final String RESTORED_SNAPSHOT_FILE = "netflux/snapshot.restored.bin";
 
     private static final String CMD_LEAVE = "LEAVE";
 
@@ -64,14 +134,40 @@ public class NetfluxBackend implements WebSocketHandler
 
     private static final String CMD_JOIN = "JOIN";
 
+    private static final String CMD_GET_HISTORY = "GET_HISTORY";
+
+    private static final String CMD_EXT = "EXT";
+
+    private static final String CMD_MEMBERS = "MEMBERS";
+
+    private static final String CMD_IDENT = "IDENT";
+
     private static final String ERR_INVALID = "EINVAL";
 
     private static final String ERR_NO_ENTRY = "ENOENT";
 
+    private static final String ERR_TOO_BIG = "E2BIG";
+
+    private static final String ERR_NO_SPACE = "ENOSPC";
+
+    private static final String ERR_CONNECTION_RESET = "ECONNRESET";
+
+    private static final String ERR_OUT_OF_RANGE = "ERANGE";
+
+    /**
+     * All existing channels, by key.
+     */
+    private final Map<String, Channel> channelIndex = new ConcurrentHashMap<>();
+
     /**
-     * All existing channels.
+     * The channel registries, by wiki.
      */
-    public final ChannelBox channels = new ChannelBox();
+    private final Map<String, ChannelBox> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * The policies of the channel types, by type.
+     */
+    private final Map<String, ChannelPolicy> policies = new ConcurrentHashMap<>();
 
     private final ObjectMapper mapper = new ObjectMapper();
 
@@ -81,14 +177,88 @@ public class NetfluxBackend implements WebSocketHandler
 
     private final UserBox users = new UserBox();
 
+    private final CountDownLatch restored = new CountDownLatch(1);
+
+    private final LongAdder duplicateMessages = new LongAdder();
+
+    /**
+     * The client sessions that have sequence numbers to remember, by id, including the ones whose client is
+     * disconnected, until they expire.
+     */
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * The server secret the session ids are derived from, see {@link #getSessionId(User)}.
+     */
+    private final SecretKeySpec sessionKey = newSessionKey();
+
+    /**
+     * The users having pending messages that no thread is currently sending.
+     */
+    private final Queue<User> pendingUsers = new ArrayDeque<>();
+
+    /**
+     * The number of additional threads requested to send the pending messages, following a broadcast to a big channel.
+     */
+    private int fanOutHelpers;
+
+    private int parallelFanOutThreshold;
+
+    private int fanOutThreads;
+
+    private ExecutorService fanOutExecutor;
+
+    private long membershipWindow;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * The channels whose history must be written to, or removed from, the store. The store is updated by the scheduler
+     * thread, after the backend lock is released.
+     */
+    private final Queue<Channel> unsavedChannels = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean savingHistories = new AtomicBoolean();
+
+    /**
+     * The channel whose history must be read from the store before the message being handled can be, see
+     * {@link #deferUntilLoaded(Channel)}.
+     */
+    private Channel channelToLoad;
+
+    private int channelToLoadVersion;
+
+    private int maxFrameSize;
+
+    private int largeFrameThreshold;
+
+    private DirectBufferPool bufferPool;
+
+    private TrafficLog.Writer capture;
+
+    @Inject
+    private NetfluxHistoryStore historyStore;
+
+    @Inject
+    private NetfluxConfiguration configuration;
+
+    @Inject
+    private NetfluxEventPipeline eventPipeline;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
     /**
      * Store/remove/get users in memory.
      */
     private static class UserBox
     {
-        private Map<WebSocket, User> userBySocket = new HashMap<WebSocket, User>();
+        private Map<WebSocket, User> userBySocket = new ConcurrentHashMap<WebSocket, User>();
 
-        private Map<String, User> userByName = new HashMap<>();
+        private Map<String, User> userByName = new ConcurrentHashMap<>();
 
         /**
          * Get a User by his name.
@@ -145,14 +315,53 @@ public class NetfluxBackend implements WebSocketHandler
     }
 
     /**
-     * Store/remove/get channels in memory.
+     * Store/remove/get the channels of a wiki in memory. Each wiki has its own registry, limits and statistics, so that
+     * the cleanup of a busy wiki doesn't scan the channels of the others. The keys of all the channels are also indexed
+     * together since the clients join the channels by key.
      */
     public static class ChannelBox
     {
-        private Map<String, String> keyByName = new ConcurrentHashMap<String, String>();
+        private static final int CHANNELS_BY_NAME_CAPACITY = 2;
+
+        private final String wiki;
+
+        private final Map<String, Channel> index;
 
         private Map<String, Channel> channelByKey = new ConcurrentHashMap<String, Channel>();
 
+        private Map<String, Map<String, Channel>> channelsByName = new ConcurrentHashMap<>();
+
+        private final Consumer<Channel> saveLater;
+
+        private final DirectBufferPool bufferPool;
+
+        private final int maxChannels;
+
+        private final long maxHistoryBytes;
+
+        private final AtomicLong lastCleanup = new AtomicLong();
+
+        private final MessageRate messageRate = new MessageRate();
+
+        ChannelBox(String wiki, Map<String, Channel> index, Consumer<Channel> saveLater, DirectBufferPool bufferPool,
+            int maxChannels, long maxHistoryBytes)
+        {
+            this.wiki = wiki;
+            this.index = index;
+            this.saveLater = saveLater;
+            this.bufferPool = bufferPool;
+            this.maxChannels = maxChannels;
+            this.maxHistoryBytes = maxHistoryBytes;
+        }
+
+        /**
+         * @return the wiki of the channels, {@code null} for the channels created by the clients
+         */
+        public String getWiki()
+        {
+            return wiki;
+        }
+
         /**
          * Get a Channel by its name.
          * 
@@ -162,7 +371,9 @@ public class NetfluxBackend implements WebSocketHandler
          */
         public String getKeyByName(String name, String type)
         {
-            return keyByName.get(name + '-' + type);
+            Map<String, Channel> chans = channelsByName.get(name);
+            Channel channel = (chans == null) ? null : chans.get(String.valueOf(type));
+            return (channel == null) ? null : channel.key;
         }
 
         /**
@@ -184,31 +395,51 @@ public class NetfluxBackend implements WebSocketHandler
          */
         boolean removeChannel(Channel c)
         {
-            if (channelByKey.get(c.key) == null && keyByName.get(c.name + '-' + c.type) == null) {
+            if (!channelByKey.remove(c.key, c)) {
                 return false;
             }
-            if (channelByKey.remove(c.key) == null) {
-                throw new RuntimeException("channelByKey does not contain that channel");
+            index.remove(c.key, c);
+            // Only this channel is unmapped, not another channel registered for the same name and type.
+            Map<String, Channel> chans = channelsByName.get(c.name);
+            boolean named = chans != null && chans.remove(String.valueOf(c.type), c);
+            channelsByName.computeIfPresent(c.name, (name, remaining) -> remaining.isEmpty() ? null : remaining);
+            // The history is removed from the store once the backend lock is released.
+            c.clearHistory(bufferPool);
+            if (c.setStoredHistory(Collections.emptyList())) {
+                saveLater.accept(c);
             }
-            if (keyByName.remove(c.name + '-' + c.type) == null) {
-                throw new RuntimeException("keyByName does not contain that channel");
+            if (!named) {
+                throw new RuntimeException("channelsByName does not contain that channel");
             }
             return true;
         }
 
         /**
-         * Add a Channel in memory.
+         * Add a Channel in memory, unless a channel with the same name and type already exists. Called with the
+         * backend lock held.
          * 
-         * @param c the Channel to add
+         * @param name the channel name
+         * @param type the channel type
+         * @param factory creates the channel to add
+         * @return the existing channel with the given name and type, or the added one
          */
-        void addChannel(Channel c)
+        Channel getOrAddChannel(String name, String type, Supplier<Channel> factory)
         {
-            channelByKey.put(c.key, c);
-            keyByName.put(c.name + "-" + c.type, c.key);
+            // A document has one channel by editor, a handful at most.
+            Map<String, Channel> chans =
+                channelsByName.computeIfAbsent(name, key -> new ConcurrentHashMap<>(CHANNELS_BY_NAME_CAPACITY));
+            return chans.computeIfAbsent(String.valueOf(type), key -> {
+                Channel c = factory.get();
+                c.partition = this;
+                channelByKey.put(c.key, c);
+                index.put(c.key, c);
+                return c;
+            });
         }
 
         /**
-         * Clean empty channels (no users connected).
+         * Clean empty channels (no users connected): channels idle for too long are reduced to their descriptor and
+         * old channels are removed.
          */
         public void cleanEmpty()
         {
@@ -216,17 +447,64 @@ public class NetfluxBackend implements WebSocketHandler
                 long currentTime = System.currentTimeMillis();
                 List<Channel> chans = new ArrayList<>(channelByKey.values());
                 for (Channel channel : chans) {
-                    Integer empty = USE_HISTORY_KEEPER ? 1 : 0;
-                    if (channel.users.keySet().size() == empty
-                        && (currentTime - channel.createdTime) > (1000 * 60 * 60 * 2)) {
+                    if (channel.getUserCount() > 0) {
+                        continue;
+                    }
+                    if ((currentTime - channel.createdTime) > (1000 * 60 * 60 * 2)) {
                         removeChannel(channel);
+                    } else if ((currentTime - channel.lastActivity) > channel.policy.getIdleTimeout()
+                        && channel.dehydrate(bufferPool)) {
+                        saveLater.accept(channel);
                     }
                 }
+                if (maxHistoryBytes > 0) {
+                    enforceHistoryBudget(chans);
+                }
             } catch (Exception e) {
                 // Keep going if cleanEmpty fails...
             }
         }
 
+        /**
+         * Unload the empty channels, the least recently active first, until the history kept in memory for this wiki
+         * fits in its budget.
+         */
+        private void enforceHistoryBudget(List<Channel> chans)
+        {
+            long total = chans.stream().mapToLong(Channel::getHistoryBytes).sum();
+            if (total <= maxHistoryBytes) {
+                return;
+            }
+            chans.sort(Comparator.comparingLong(channel -> channel.lastActivity));
+            for (Channel channel : chans) {
+                if (total <= maxHistoryBytes) {
+                    break;
+                }
+                if (channel.isHydrated() && channel.getUserCount() == 0) {
+                    total -= channel.getHistoryBytes();
+                    if (channel.dehydrate(bufferPool)) {
+                        saveLater.accept(channel);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return {@code true} if no channel can be added to this wiki
+         */
+        boolean isFull()
+        {
+            return maxChannels > 0 && channelByKey.size() >= maxChannels;
+        }
+
+        /**
+         * @return the channels of this wiki
+         */
+        Collection<Channel> getChannels()
+        {
+            return channelByKey.values();
+        }
+
         /**
          * @param name the name of an XWiki document
          * @return the channels associated with the specified XWiki document
@@ -234,40 +512,81 @@ public class NetfluxBackend implements WebSocketHandler
         public Map<String, Object> getKeysFromDocName(String name)
         {
             Map<String, Object> keyByType = new HashMap<>();
-            List<Channel> chans = new ArrayList<>(channelByKey.values());
-            Integer removeUsers = USE_HISTORY_KEEPER ? 1 : 0;
-            for (Channel channel : chans) {
-                if (channel.name.equals(name)) {
-                    Map<String, Object> chanMap = new HashMap<>();
-                    chanMap.put("key", channel.key);
-                    chanMap.put("users", channel.users.size() - removeUsers);
-                    keyByType.put(channel.type, chanMap);
-                }
+            for (Channel channel : getChannelsByName(name)) {
+                Map<String, Object> chanMap = new HashMap<>();
+                chanMap.put("key", channel.key);
+                chanMap.put("users", channel.getUserCount());
+                keyByType.put(channel.type, chanMap);
             }
             return keyByType;
         }
+
+        /**
+         * @param name the name of an XWiki document
+         * @return the number of users connected to each channel associated with the specified XWiki document, by
+         *         channel type
+         */
+        public Map<String, Integer> getPresence(String name)
+        {
+            Map<String, Integer> presence = new HashMap<>();
+            for (Channel channel : getChannelsByName(name)) {
+                presence.put(channel.type, channel.getUserCount());
+            }
+            return presence;
+        }
+
+        private Collection<Channel> getChannelsByName(String name)
+        {
+            Map<String, Channel> chans = channelsByName.get(name);
+            return chans == null ? Collections.emptyList() : chans.values();
+        }
     }
 
     /**
-     * Represents a communication channel.
+     * Represents a communication channel. A channel is only a lightweight descriptor (key, name and type) until it is
+     * joined for the first time, and goes back to that state when it stays idle for too long.
      */
     public static class Channel
     {
         /**
-         * The users connected to this channel.
+         * The initial capacity of {@link #users}: most channels have one or two users besides the history keeper.
+         */
+        private static final int USERS_CAPACITY = 4;
+
+        private static final AtomicIntegerFieldUpdater<Channel> USER_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(Channel.class, "userCount");
+
+        private static final AtomicLongFieldUpdater<Channel> HISTORY_BYTES =
+            AtomicLongFieldUpdater.newUpdater(Channel.class, "historyBytes");
+
+        private static final AtomicLongFieldUpdater<Channel> DUPLICATE_MESSAGES =
+            AtomicLongFieldUpdater.newUpdater(Channel.class, "duplicateMessages");
+
+        /**
+         * The users connected to this channel, {@code null} if the channel is not loaded.
          */
-        public final Map<String, User> users = new HashMap<String, User>();
+        public Map<String, User> users;
 
         /**
-         * Messages sent through this channel.
+         * Messages sent through this channel, {@code null} if the channel is not loaded.
          */
-        public LinkedList<String> messages = new LinkedList<String>();
+        public ArrayDeque<HistoryEntry> messages;
 
         /**
          * The channel type.
          */
         public final String type;
 
+        /**
+         * The wiki of the document edited through this channel, {@code null} for the channels created by the clients.
+         */
+        public final String wiki;
+
+        /**
+         * The registry of the channels of the wiki.
+         */
+        ChannelBox partition;
+
         /**
          * The channel name.
          */
@@ -283,171 +602,1298 @@ public class NetfluxBackend implements WebSocketHandler
          */
         public final String key;
 
-        Channel(String name, String type)
-        {
-            this.type = type;
-            this.name = name;
-            this.key = getRandomHexString(48);
-        }
-    }
+        /**
+         * The history and retention policy of the channel type.
+         */
+        final ChannelPolicy policy;
 
-    private static class User
-    {
         /**
-         * The WebSocket connection to this user.
+         * The time of the last JOIN, LEAVE or message on this channel.
          */
-        public final WebSocket sock;
+        long lastActivity = createdTime;
 
         /**
-         * The user name.
+         * The number of users connected to this channel, the history keeper excluded. It is maintained along with
+         * {@link #users} so that it can be read without holding the backend lock.
          */
-        public final String name;
+        private volatile int userCount;
 
         /**
-         * The messages that are pending to be sent to this user.
+         * The size of the history kept in memory, in bytes (the size of the stored messages, UTF-8 encoded).
          */
-        public final Queue<String> toBeSent = new LinkedList<>();
+        private volatile long historyBytes;
 
         /**
-         * The channels this user has joined.
+         * The number of checkpoints in the history kept in memory.
          */
-        public final Set<Channel> chans = new HashSet<Channel>();
+        private int checkpoints;
 
         /**
-         * Whether the user is still connected.
+         * The rate of the messages sent through this channel, {@code null} until the first message.
          */
-        public boolean connected;
+        private volatile MessageRate messageRate;
 
         /**
-         * The time when the last message was received from this user.
+         * The number of messages that were sent again by their sender, and thus not relayed.
          */
-        public long timeOfLastMessage = System.currentTimeMillis();
+        private volatile long duplicateMessages;
 
-        User(WebSocket ws, String name)
+        /**
+         * The JOIN and LEAVE waiting to be sent to the users supporting {@link NetfluxExtension#MEMBERS}, {@code null}
+         * if there are none.
+         */
+        MembershipChanges pendingMembership;
+
+        /**
+         * The history of the channel while it's not loaded, when it's kept in memory: read ahead of the JOIN, or
+         * waiting to be written to the store. {@code null} if the history is only in the store, or if the channel is
+         * loaded. The store fields are guarded by the channel monitor since the store is accessed without holding the
+         * backend lock.
+         */
+        private List<String> storedHistory;
+
+        /**
+         * Whether the store may hold a history for this channel.
+         */
+        private boolean inStore;
+
+        /**
+         * Whether the store must be updated to hold {@link #storedHistory}, or nothing if it's {@code null}.
+         */
+        private boolean unsaved;
+
+        /**
+         * Incremented each time the history moves in or out of the channel, so that outdated store reads are discarded.
+         */
+        private int storeVersion;
+
+        Channel(String wiki, String name, String type, ChannelPolicy policy)
         {
-            this.sock = ws;
+            this(getRandomHexString(48), wiki, name, type, policy);
+            // A new key: there's nothing to read from the store.
+            this.storedHistory = Collections.emptyList();
+            this.inStore = false;
+        }
+
+        Channel(String key, String wiki, String name, String type, ChannelPolicy policy)
+        {
+            // The wiki and type strings are shared by many channels, possibly read from different requests.
+            this.wiki = (wiki == null) ? null : wiki.intern();
+            this.type = (type == null) ? null : type.intern();
             this.name = name;
-            this.connected = true;
+            this.key = key;
+            this.policy = policy;
+            this.inStore = true;
         }
-    }
 
-    /**
-     * Create a channel based on a "name" String. A random key will be generated for that channel. If the name is empty,
-     * a 32 chars "cryptpad" key will be generated.
-     * 
-     * @param id the document identifier (reference and unique modifier)
-     * @param type the channel type (events, rtwiki, etc.)
-     * @return the created channel
-     */
-    public Channel createChannel(String id, String type)
-    {
-        Channel chan = new Channel(id, type);
-        if (USE_HISTORY_KEEPER) {
-            chan.users.put(historyKeeper, null);
+        /**
+         * @return {@code true} if the channel state (users and history) is loaded in memory
+         */
+        public boolean isHydrated()
+        {
+            return users != null;
         }
-        channels.addChannel(chan);
-        return chan;
-    }
 
-    /**
-     * Handler called when a socket is closed/disconnected.
-     * 
-     * @param ws the WebSocket
-     */
-    private void wsDisconnect(WebSocket ws)
-    {
-        synchronized (bigLock) {
+        /**
+         * @return the number of users connected to this channel, the history keeper excluded
+         */
+        public int getUserCount()
+        {
+            return userCount;
+        }
 
-            User user = users.bySocket(ws);
+        /**
+         * Add a user to this channel.
+         * 
+         * @param user the user joining the channel
+         */
+        void addUser(User user)
+        {
+            if (users.put(user.name, user) == null) {
+                USER_COUNT.incrementAndGet(this);
+            }
+        }
 
-            if (user == null) {
-                return;
+        /**
+         * Remove a user from this channel.
+         * 
+         * @param user the user leaving the channel
+         */
+        void removeUser(User user)
+        {
+            if (users.remove(user.name) != null) {
+                USER_COUNT.decrementAndGet(this);
             }
+        }
 
-            users.removeUser(user);
-            user.connected = false;
+        /**
+         * Called with the backend lock held.
+         * 
+         * @return the store version to pass to {@link #loadHistory(NetfluxHistoryStore, int)} if the history has to be
+         *         read from the store before the channel is loaded, {@code -1} otherwise
+         */
+        synchronized int getStoreVersionToLoad()
+        {
+            boolean load = !isHydrated() && policy.isHistoryEnabled() && storedHistory == null && !unsaved;
+            return load ? storeVersion : -1;
+        }
 
-            for (Channel chan : user.chans) {
-                chan.users.remove(user.name);
-                List<Object> leaveMsg = buildDefault(user.name, CMD_LEAVE, chan.key, "Quit: [ wsDisconnect() ]");
-                String msgStr = display(leaveMsg);
-                sendChannelMessage(CMD_LEAVE, user, chan, msgStr);
-                // Remove the channel when there is no user anymore (the history keeper doesn't count)
-                Integer minSize = (USE_HISTORY_KEEPER) ? 1 : 0;
-                if (chan.users.keySet().size() == minSize) {
-                    channels.removeChannel(chan);
+        /**
+         * Read the history from the store ahead of loading the channel, without holding the backend lock.
+         * 
+         * @param store the store holding the history of the channels that are not loaded
+         * @param version the store version returned by {@link #getStoreVersionToLoad()}: the history isn't kept if it
+         *            moved since
+         */
+        void loadHistory(NetfluxHistoryStore store, int version)
+        {
+            synchronized (this) {
+                if (version != storeVersion || storedHistory != null || unsaved) {
+                    return;
+                }
+            }
+            List<String> history = store.load(key);
+            synchronized (this) {
+                if (version == storeVersion && storedHistory == null && !unsaved) {
+                    storedHistory = history;
                 }
             }
         }
-    }
-
-    private static String getRandomHexString(int numchars)
-    {
-        Random r = new Random();
-        StringBuffer sb = new StringBuffer();
-        while (sb.length() < numchars) {
-            sb.append(Integer.toHexString(r.nextInt()));
-        }
-        return sb.toString().substring(0, numchars);
-    }
 
-    private String display(List<Object> list)
-    {
-        try {
-            return mapper.writeValueAsString(list);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to serialize message", e);
+        /**
+         * Load the channel state in memory. The history is read from the given store if it wasn't read ahead.
+         * 
+         * @param historyKeeper the name of the history keeper pseudo-user
+         * @param store the store holding the history of the channels that are not loaded
+         * @param pool the pool providing the buffers of the large history entries
+         * @return {@code true} if the history must then be removed from the store, see {@link #saveHistory}
+         */
+        boolean hydrate(String historyKeeper, NetfluxHistoryStore store, DirectBufferPool pool)
+        {
+            if (isHydrated()) {
+                return false;
+            }
+            users = new HashMap<String, User>(USERS_CAPACITY);
+            messages = new ArrayDeque<HistoryEntry>();
+            if (policy.isHistoryKeeperEnabled()) {
+                users.put(historyKeeper, null);
+            }
+            List<String> history;
+            boolean remove;
+            synchronized (this) {
+                history = storedHistory;
+                if (history == null && !unsaved && policy.isHistoryEnabled()) {
+                    history = store.load(key);
+                }
+                storedHistory = null;
+                unsaved = inStore;
+                remove = unsaved;
+                storeVersion++;
+            }
+            if (policy.isHistoryEnabled() && history != null) {
+                for (String msgStr : history) {
+                    addToHistory(msgStr, isCheckpoint(msgStr), pool);
+                }
+            }
+            return remove;
         }
-    }
 
-    /**
-     * Add a message to the sending queue of a User.
+        /**
+         * Release the channel state, keeping its history in memory until it's written to the store by
+         * {@link #saveHistory}.
+         * 
+         * @param pool the pool providing the buffers of the large history entries
+         * @return {@code true} if the store must be updated
+         */
+        boolean dehydrate(DirectBufferPool pool)
+        {
+            if (!isHydrated()) {
+                synchronized (this) {
+                    // Forget the history read ahead of a JOIN that didn't happen.
+                    if (!unsaved && inStore) {
+                        storedHistory = null;
+                    }
+                }
+                return false;
+            }
+            List<String> history = policy.isHistoryEnabled() ? getHistory() : Collections.emptyList();
+            messages.forEach(entry -> entry.release(pool));
+            users = null;
+            messages = null;
+            historyBytes = 0;
+            checkpoints = 0;
+            return setStoredHistory(history);
+        }
+
+        /**
+         * Drop the history of this channel.
+         * 
+         * @param pool the pool providing the buffers of the large history entries
+         * @return {@code true} if the history must then be removed from the store
+         */
+        boolean clearHistory(DirectBufferPool pool)
+        {
+            if (isHydrated()) {
+                messages.forEach(entry -> entry.release(pool));
+                messages = new ArrayDeque<HistoryEntry>();
+                historyBytes = 0;
+                checkpoints = 0;
+                return false;
+            } else {
+                return setStoredHistory(Collections.emptyList());
+            }
+        }
+
+        /**
+         * @param history the history the store must hold for this channel
+         * @return {@code true} if the store must be updated
+         */
+        synchronized boolean setStoredHistory(List<String> history)
+        {
+            storedHistory = history;
+            unsaved = inStore || !history.isEmpty();
+            storeVersion++;
+            return unsaved;
+        }
+
+        /**
+         * @param store the store holding the history of the channels that are not loaded
+         * @return the history of this channel, which is not loaded
+         */
+        List<String> getStoredHistory(NetfluxHistoryStore store)
+        {
+            synchronized (this) {
+                if (storedHistory != null || unsaved) {
+                    return (storedHistory != null) ? storedHistory : Collections.emptyList();
+                }
+            }
+            return store.load(key);
+        }
+
+        /**
+         * Write the history of this channel to the store, or remove it from the store, without holding the backend
+         * lock. Called by a single thread so that the store I/O of a channel happens in order.
+         * 
+         * @param store the store holding the history of the channels that are not loaded
+         * @return {@code true} if the history moved in the meantime and the store must be updated again
+         */
+        boolean saveHistory(NetfluxHistoryStore store)
+        {
+            List<String> history;
+            int version;
+            synchronized (this) {
+                if (!unsaved) {
+                    return false;
+                }
+                history = storedHistory;
+                version = storeVersion;
+            }
+            boolean saved = history != null && !history.isEmpty();
+            if (saved) {
+                store.save(key, history);
+            } else {
+                store.remove(key);
+            }
+            synchronized (this) {
+                inStore = saved;
+                if (version == storeVersion) {
+                    unsaved = false;
+                    if (saved) {
+                        // The history is only in the store from now on.
+                        storedHistory = null;
+                    }
+                } else {
+                    unsaved = inStore || (storedHistory != null && !storedHistory.isEmpty());
+                }
+                return unsaved;
+            }
+        }
+
+        /**
+         * Add a message to the history of this channel.
+         * 
+         * @param msgStr the message to add
+         * @param checkpoint whether the message is a checkpoint
+         * @param pool the pool providing the buffers of the large history entries
+         */
+        void addToHistory(String msgStr, boolean checkpoint, DirectBufferPool pool)
+        {
+            HistoryEntry entry = HistoryEntry.of(msgStr, checkpoint, pool);
+            messages.add(entry);
+            HISTORY_BYTES.addAndGet(this, entry.size());
+            if (checkpoint) {
+                checkpoints++;
+            }
+        }
+
+        /**
+         * Remove the messages preceding the last checkpoint of the history.
+         * 
+         * @param pool the pool providing the buffers of the large history entries
+         * @return the number of removed messages
+         */
+        int pruneHistory(DirectBufferPool pool)
+        {
+            int kept = 0;
+            for (Iterator<HistoryEntry> it = messages.descendingIterator(); it.hasNext();) {
+                kept++;
+                if (it.next().isCheckpoint()) {
+                    break;
+                }
+            }
+            int pruned = messages.size() - kept;
+            for (int i = 0; i < pruned; i++) {
+                removeOldestEntry(pool);
+            }
+            return pruned;
+        }
+
+        /**
+         * Remove the oldest messages until the history fits in the limits of the channel policy. The last checkpoint
+         * is never removed since the clients need it to rebuild the channel content from the history, and a history
+         * without checkpoint is not trimmed at all since the clients rebuild the content from its first message.
+         * 
+         * @param pool the pool providing the buffers of the large history entries
+         * @return the number of removed messages, {@code -1} if the history exceeds the limits but has no checkpoint
+         */
+        int trimHistory(DirectBufferPool pool)
+        {
+            if (checkpoints == 0) {
+                return policy.isExceeded(messages.size(), historyBytes) ? -1 : 0;
+            }
+            int trimmed = 0;
+            while (messages.size() > 1 && policy.isExceeded(messages.size(), historyBytes)
+                && !(checkpoints == 1 && messages.getFirst().isCheckpoint())) {
+                removeOldestEntry(pool);
+                trimmed++;
+            }
+            return trimmed;
+        }
+
+        private void removeOldestEntry(DirectBufferPool pool)
+        {
+            HistoryEntry entry = messages.removeFirst();
+            HISTORY_BYTES.addAndGet(this, -entry.size());
+            if (entry.isCheckpoint()) {
+                checkpoints--;
+            }
+            entry.release(pool);
+        }
+
+        /**
+         * @return the messages of the history, the channel being loaded
+         */
+        List<String> getHistory()
+        {
+            return messages.stream().map(HistoryEntry::getText).collect(Collectors.toList());
+        }
+
+        /**
+         * @return the size of the history kept in memory, in bytes (the size of the stored messages, UTF-8 encoded)
+         */
+        public long getHistoryBytes()
+        {
+            return historyBytes;
+        }
+
+        /**
+         * Count a message that was sent again by its sender, and thus not relayed.
+         */
+        void countDuplicateMessage()
+        {
+            DUPLICATE_MESSAGES.incrementAndGet(this);
+        }
+
+        /**
+         * Count a message sent through this channel. Called with the backend lock held.
+         * 
+         * @param now the current time, in milliseconds
+         */
+        void countMessage(long now)
+        {
+            if (messageRate == null) {
+                messageRate = new MessageRate();
+            }
+            messageRate.mark(now);
+        }
+
+        /**
+         * @param now the current time, in milliseconds
+         * @return the number of messages sent through this channel during the last complete minute
+         */
+        public long getMessagesPerMinute(long now)
+        {
+            MessageRate rate = messageRate;
+            return (rate == null) ? 0 : rate.getPerMinute(now);
+        }
+
+        /**
+         * @return the number of messages sent through this channel since it was created
+         */
+        public long getMessageCount()
+        {
+            MessageRate rate = messageRate;
+            return (rate == null) ? 0 : rate.getTotal();
+        }
+    }
+
+    private static class User
+    {
+        /**
+         * The WebSocket connection to this user.
+         */
+        public final WebSocket sock;
+
+        /**
+         * The user name.
+         */
+        public final String name;
+
+        /**
+         * The messages that are pending to be sent to this user, {@code null} if there are none. Most users are idle:
+         * the list is created when a message is queued and handed over to the thread sending the messages.
+         */
+        public List<String> toBeSent;
+
+        /**
+         * The size of {@link #toBeSent}, maintained so that it can be read without holding the backend lock.
+         */
+        public volatile int queueSize;
+
+        /**
+         * The channels this user has joined, one or two most of the time.
+         */
+        public final Set<Channel> chans = new CompactSet<Channel>();
+
+        /**
+         * Whether the user is still connected.
+         */
+        public volatile boolean connected;
+
+        /**
+         * The protocol extensions enabled by this user, see {@link NetfluxExtension}.
+         */
+        int extensions;
+
+        /**
+         * The client session, created on the first message.
+         */
+        Session session;
+
+        /**
+         * Whether the user is waiting in the pending users queue or a thread is sending messages to the user. Only one
+         * thread at a time sends messages to a given user, so that the messages are received in order.
+         */
+        boolean scheduled;
+
+        /**
+         * The time when the last message was received from this user.
+         */
+        public volatile long timeOfLastMessage = System.currentTimeMillis();
+
+        User(WebSocket ws, String name)
+        {
+            this.sock = ws;
+            this.name = name;
+            this.connected = true;
+        }
+
+        /**
+         * Forget the sequence numbers of the messages sent to a recipient.
+         * 
+         * @param recipient the channel key or user name
+         */
+        void forgetSequence(String recipient)
+        {
+            if (session != null) {
+                session.sequenceWindows.remove(recipient);
+            }
+        }
+    }
+
+    /**
+     * The state of a client that survives its reconnections. A client resumes its session after reconnecting by
+     * sending {@code [seq, "IDENT", sessionId]} with the session id it received in the IDENT message of its previous
+     * connection, and then keeps numbering its messages from where it was.
+     * <p>
+     * The messages sent again are detected with the sequence numbers of the connection, which the PING, JOIN and other
+     * commands consume too: there's no sequence number specific to the MSG commands in the protocol. Hence:
+     * <ul>
+     * <li>only the clients that resume their session with IDENT get their messages deduplicated across reconnections,
+     * since the other ones restart their numbering on a new session;</li>
+     * <li>the {@link SequenceWindow} of a recipient spans 64 sequence numbers of the connection, up to the highest one
+     * of the messages sent to it, not 64 messages: the commands interleaved with the messages make it cover fewer of
+     * them, and an older message sent again is rejected with {@code ERANGE} rather than being deduplicated.</li>
+     * </ul>
+     */
+    private static class Session
+    {
+        /**
+         * The session id, a secret shared with the client, which is the id derived from the name of its last user.
+         * Guarded by the backend lock.
+         */
+        String id;
+
+        /**
+         * The sequence numbers of the last messages sent by the client, by recipient (channel key or user name).
+         */
+        final Map<String, SequenceWindow> sequenceWindows = new HashMap<>();
+
+        /**
+         * The connected user using this session, {@code null} once disconnected.
+         */
+        volatile User user;
+
+        /**
+         * The time when the session lost its user.
+         */
+        volatile long detachedSince;
+
+        Session(String id, User user)
+        {
+            this.id = id;
+            this.user = user;
+        }
+
+        /**
+         * Record the sequence number of a message sent by the client.
+         * 
+         * @param recipient the channel key or user name the message is sent to
+         * @param seq the message sequence number
+         * @return {@code true} if this is a new message, {@code false} if it was already received
+         */
+        boolean accept(String recipient, int seq)
+        {
+            return sequenceWindows.computeIfAbsent(recipient, k -> new SequenceWindow()).accept(seq);
+        }
+
+        /**
+         * @param recipient the channel key or user name the message is sent to
+         * @param seq the message sequence number
+         * @return {@code true} if the sequence number is too old to know whether the message was already received
+         */
+        boolean isTooOld(String recipient, int seq)
+        {
+            SequenceWindow window = sequenceWindows.get(recipient);
+            return window != null && window.isTooOld(seq);
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        parallelFanOutThreshold = Math.max(1, configuration.getParallelFanOutThreshold());
+        fanOutThreads = Math.max(1, configuration.getFanOutThreads());
+        fanOutExecutor = Executors.newFixedThreadPool(fanOutThreads,
+            new BasicThreadFactory.Builder().namingPattern("Netflux fan-out %d").daemon(true).build());
+        membershipWindow = configuration.getMembershipCoalescingWindow();
+        maxFrameSize = configuration.getMaxFrameSize();
+        largeFrameThreshold = configuration.getLargeFrameThreshold();
+        bufferPool = new DirectBufferPool(largeFrameThreshold, configuration.getOffHeapHistorySize());
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("Netflux scheduler").daemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::disconnectTimedOutUsers, TIMEOUT_SWEEP_MILLISECONDS,
+            TIMEOUT_SWEEP_MILLISECONDS, TimeUnit.MILLISECONDS);
+        if (configuration.isCaptureEnabled()) {
+            startCapture();
+        }
+
+        File snapshotFile = new File(environment.getPermanentDirectory(), SNAPSHOT_FILE);
+        if (snapshotFile.isFile()) {
+            // The snapshot is renamed so that it's not restored again if the next shutdown doesn't write a new one. The
+            // restored file is deleted once its content is consumed.
+            File restoredFile = new File(environment.getPermanentDirectory(), RESTORED_SNAPSHOT_FILE);
+            try {
+                Files.move(snapshotFile.toPath(), restoredFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                ChannelSnapshot snapshot = new ChannelSnapshot(restoredFile);
+                SnapshotHistoryStore snapshotStore = new SnapshotHistoryStore(historyStore, snapshot, logger);
+                historyStore = snapshotStore;
+                Thread restoreThread = new Thread(() -> restore(snapshot, snapshotStore), "Netflux snapshot restore");
+                restoreThread.setDaemon(true);
+                restoreThread.start();
+                return;
+            } catch (IOException e) {
+                logger.warn("Failed to rename the Netflux snapshot [{}], the channels are not restored.", snapshotFile,
+                    e);
+            }
+        }
+        restored.countDown();
+    }
+
+    private void restore(ChannelSnapshot snapshot, SnapshotHistoryStore snapshotStore)
+    {
+        try {
+            // Only the channel descriptors are restored, the history is read from the snapshot on the first JOIN.
+            snapshot.readIndex(entry -> {
+                Channel chan = new Channel(entry.key, entry.wiki, entry.name, entry.type, getPolicy(entry.type));
+                synchronized (bigLock) {
+                    // Skip the channels of the documents that got a new channel since the startup.
+                    if (getChannels(entry.wiki).getOrAddChannel(entry.name, entry.type, () -> chan) == chan) {
+                        snapshotStore.addEntry(entry);
+                    }
+                }
+            });
+            snapshotStore.setComplete();
+        } catch (IOException e) {
+            logger.warn("Failed to restore the Netflux channels.", e);
+        } finally {
+            restored.countDown();
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        fanOutExecutor.shutdownNow();
+        scheduler.shutdownNow();
+        if (capture != null) {
+            capture.close();
+        }
+        synchronized (bigLock) {
+            File snapshotFile = new File(environment.getPermanentDirectory(), SNAPSHOT_FILE);
+            File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+            try {
+                tmpFile.getParentFile().mkdirs();
+                ChannelSnapshot.write(tmpFile, channelIndex.values(),
+                    chan -> chan.isHydrated() ? chan.getHistory() : chan.getStoredHistory(historyStore));
+                Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                logger.warn("Failed to save the Netflux channels.", e);
+            }
+        }
+    }
+
+    private void startCapture()
+    {
+        File file = new File(new File(environment.getTemporaryDirectory(), CAPTURE_DIRECTORY),
+            System.currentTimeMillis() + ".bin");
+        try {
+            capture = new TrafficLog.Writer(file, configuration.isCaptureRedacted(), configuration.getCaptureMaxSize(),
+                historyKeeper, logger);
+            logger.info("Recording the Netflux traffic in [{}].", file);
+        } catch (IOException e) {
+            logger.warn("Failed to start the Netflux traffic capture.", e);
+        }
+    }
+
+    /**
+     * Wait for the channels saved during the previous shutdown to be restored, so that their keys can be joined.
+     */
+    private void waitForRestore()
+    {
+        try {
+            if (!restored.await(RESTORE_WAIT_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+                logger.warn("The Netflux channels are still being restored.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a channel based on a "name" String. A random key will be generated for that channel. If the name is empty,
+     * a 32 chars "cryptpad" key will be generated. Only the channel descriptor is created, its state is loaded when the
+     * channel is joined for the first time.
+     * 
+     * @param id the document identifier (reference and unique modifier)
+     * @param type the channel type (events, rtwiki, etc.)
+     * @return the created channel
+     */
+    public Channel createChannel(String id, String type)
+    {
+        return createChannel(null, id, type);
+    }
+
+    /**
+     * Create a channel for a document of a wiki, see {@link #createChannel(String, String)}. Concurrent calls for the
+     * same document and type get the same channel.
+     * 
+     * @param wiki the wiki of the document, {@code null} for the channels created by the clients
+     * @param id the document identifier (reference and unique modifier)
+     * @param type the channel type (events, rtwiki, etc.)
+     * @return the channel of the document for the given type, created if needed, or {@code null} if it doesn't exist
+     *         and the wiki has reached its maximum number of channels
+     */
+    public Channel createChannel(String wiki, String id, String type)
+    {
+        synchronized (bigLock) {
+            ChannelBox partition = getChannels(wiki);
+            String key = partition.getKeyByName(id, type);
+            if (key != null) {
+                return partition.byKey(key);
+            }
+            if (partition.isFull()) {
+                partition.cleanEmpty();
+                if (partition.isFull()) {
+                    logger.debug("The Netflux channel limit of wiki [{}] is reached.", wiki);
+                    return null;
+                }
+            }
+            return partition.getOrAddChannel(id, type, () -> new Channel(wiki, id, type, getPolicy(type)));
+        }
+    }
+
+    /**
+     * @param wiki a wiki, {@code null} for the channels created by the clients
+     * @return the registry of the channels of the wiki, created if needed
+     */
+    public ChannelBox getChannels(String wiki)
+    {
+        return partitions.computeIfAbsent(StringUtils.defaultString(wiki),
+            key -> new ChannelBox(wiki, channelIndex, this::saveHistoryLater, bufferPool,
+                configuration.getWikiMaxChannels(wiki), configuration.getWikiMaxHistoryBytes(wiki)));
+    }
+
+    /**
+     * @param key a channel key
+     * @return the channel with the specified key, whatever its wiki, {@code null} if it doesn't exist
+     */
+    public Channel getChannel(String key)
+    {
+        return channelIndex.get(key);
+    }
+
+    /**
+     * Remove all the channels of a wiki, for instance when the wiki is deleted. The users connected to these channels
+     * are disconnected.
+     * 
+     * @param wiki the wiki
+     * @return {@code true} if the wiki had channels, {@code false} otherwise
+     */
+    public boolean unloadWiki(String wiki)
+    {
+        List<User> disconnected = new ArrayList<>();
+        synchronized (bigLock) {
+            ChannelBox partition = partitions.remove(StringUtils.defaultString(wiki));
+            if (partition == null) {
+                return false;
+            }
+            for (Channel chan : new ArrayList<>(partition.getChannels())) {
+                if (chan.isHydrated()) {
+                    for (User user : new ArrayList<>(chan.users.values())) {
+                        if (user != null && user.connected) {
+                            disconnected.add(user);
+                            wsDisconnect(user.sock);
+                        }
+                    }
+                }
+                partition.removeChannel(chan);
+            }
+        }
+        sendPendingMessages(null);
+        disconnected.forEach(this::closeSocket);
+        return true;
+    }
+
+    /**
+     * @param type a channel type
+     * @return the policy of the channels of the given type, read from the configuration the first time it's needed
+     */
+    private ChannelPolicy getPolicy(String type)
+    {
+        return policies.computeIfAbsent(String.valueOf(type), key -> configuration.getChannelPolicy(type));
+    }
+
+    /**
+     * Clean the empty channels of a wiki, see {@link ChannelBox#cleanEmpty()}. This method is called on every page
+     * render so the cleaning of each wiki is done at most once per minute.
+     * 
+     * @param wiki the wiki
+     */
+    public void cleanChannels(String wiki)
+    {
+        ChannelBox partition = getChannels(wiki);
+        long now = System.currentTimeMillis();
+        long last = partition.lastCleanup.get();
+        if (now - last < CLEANUP_INTERVAL_MILLISECONDS || !partition.lastCleanup.compareAndSet(last, now)) {
+            return;
+        }
+        NetfluxFlightRecorder.LockWait lockEvent = NetfluxFlightRecorder.lockWait("cleanEmpty");
+        synchronized (bigLock) {
+            lockEvent.acquired();
+            partition.cleanEmpty();
+        }
+    }
+
+    /**
+     * Collect diagnostics about the live channels and connections. The data is read from statistics maintained along
+     * with the channels and users, without taking the backend lock, so the result is not an atomic snapshot.
+     * 
+     * @param limit the maximum number of entries in each list, a negative limit being handled as {@code 0}
+     * @return the channels with the biggest history, the most users and the highest message rate, the users with the
+     *         most pending messages and the oldest last message, the number of duplicate messages and the event sink
+     *         statistics
+     */
+    public Map<String, Object> getDiagnostics(int limit)
+    {
+        long now = System.currentTimeMillis();
+        int max = Math.max(0, limit);
+        Map<String, Object> diagnostics = new HashMap<>();
+        Collection<Channel> allChannels = channelIndex.values();
+        diagnostics.put("channelCount", allChannels.size());
+        diagnostics.put("channelsByHistorySize",
+            top(allChannels, Channel::getHistoryBytes, max, c -> describe(c, now)));
+        diagnostics.put("channelsByUserCount", top(allChannels, Channel::getUserCount, max, c -> describe(c, now)));
+        diagnostics.put("channelsByMessageRate",
+            top(allChannels, c -> c.getMessagesPerMinute(now), max, c -> describe(c, now)));
+        Collection<User> allUsers = users.userByName.values();
+        diagnostics.put("userCount", allUsers.size());
+        diagnostics.put("usersByQueueSize", top(allUsers, u -> u.queueSize, max, u -> describe(u, now)));
+        diagnostics.put("wikisByChannelCount",
+            top(partitions.values(), p -> p.getChannels().size(), max, p -> describe(p, now)));
+        diagnostics.put("usersByInactivity",
+            top(allUsers, u -> now - u.timeOfLastMessage, max, u -> describe(u, now)));
+        diagnostics.put("duplicateMessages", duplicateMessages.sum());
+        diagnostics.put("offHeapAllocatedBytes", bufferPool.getAllocatedBytes());
+        diagnostics.put("offHeapUsedBytes", bufferPool.getUsedBytes());
+        diagnostics.put("eventSinks", eventPipeline.getStatistics());
+        return diagnostics;
+    }
+
+    /**
+     * Force the disconnection of a user.
+     * 
+     * @param userName the name of the user, as sent in the IDENT message
+     * @return {@code true} if the user was connected, {@code false} otherwise
+     */
+    public boolean disconnectUser(String userName)
+    {
+        User user;
+        synchronized (bigLock) {
+            user = users.byName(userName);
+            if (user == null) {
+                return false;
+            }
+            wsDisconnect(user.sock);
+        }
+        // Deliver the LEAVE messages.
+        sendPendingMessages(null);
+        closeSocket(user);
+        return true;
+    }
+
+    /**
+     * Drop the history of a channel. The users connected to the channel are not notified.
+     * 
+     * @param key the channel key
+     * @return {@code true} if the channel exists, {@code false} otherwise
+     */
+    public boolean dropHistory(String key)
+    {
+        synchronized (bigLock) {
+            Channel chan = getChannel(key);
+            if (chan == null) {
+                return false;
+            }
+            if (chan.clearHistory(bufferPool)) {
+                saveHistoryLater(chan);
+            }
+        }
+        sendPendingMessages(null);
+        return true;
+    }
+
+    /**
+     * Check that the channel and user registries are consistent with each other. This is meant for the tests, which
+     * call it once the backend is quiet.
+     * 
+     * @return the description of the broken invariants, empty if the registries are consistent
+     */
+    List<String> checkInvariants()
+    {
+        List<String> violations = new ArrayList<>();
+        synchronized (bigLock) {
+            for (ChannelBox partition : partitions.values()) {
+                for (Channel chan : partition.getChannels()) {
+                    if (channelIndex.get(chan.key) != chan || chan.partition != partition) {
+                        violations.add(String.format("Channel [%s] is not indexed", chan.key));
+                    }
+                }
+            }
+            for (Channel chan : channelIndex.values()) {
+                checkInvariants(chan, violations);
+            }
+            for (User user : users.userByName.values()) {
+                if (users.bySocket(user.sock) != user || !user.connected) {
+                    violations.add(String.format("User [%s] is not registered by socket", user.name));
+                }
+                for (Channel chan : user.chans) {
+                    if (!chan.isHydrated() || chan.users.get(user.name) != user) {
+                        violations.add(String.format("User [%s] is not a member of channel [%s]", user.name, chan.key));
+                    }
+                }
+            }
+        }
+        return violations;
+    }
+
+    private void checkInvariants(Channel chan, List<String> violations)
+    {
+        if (chan.partition == null || chan.partition.byKey(chan.key) != chan) {
+            violations.add(String.format("Channel [%s] is not in the registry of its wiki", chan.key));
+        }
+        if (!chan.isHydrated()) {
+            if (chan.getUserCount() != 0 || chan.getHistoryBytes() != 0) {
+                violations.add(String.format("Unloaded channel [%s] has users or history", chan.key));
+            }
+            return;
+        }
+        int members = 0;
+        for (User user : chan.users.values()) {
+            if (user == null) {
+                continue;
+            }
+            members++;
+            if (users.byName(user.name) != user || !user.connected) {
+                violations.add(String.format("Ghost user [%s] in channel [%s]", user.name, chan.key));
+            } else if (!user.chans.contains(chan)) {
+                violations.add(String.format("User [%s] doesn't know channel [%s]", user.name, chan.key));
+            }
+        }
+        if (members != chan.getUserCount()) {
+            violations.add(String.format("Channel [%s] counts %d users instead of %d", chan.key, chan.getUserCount(),
+                members));
+        }
+        long bytes = chan.messages.stream().mapToLong(HistoryEntry::size).sum();
+        if (bytes != chan.getHistoryBytes()) {
+            violations.add(String.format("Channel [%s] counts %d history bytes instead of %d", chan.key,
+                chan.getHistoryBytes(), bytes));
+        }
+    }
+
+    private static <T> List<Map<String, Object>> top(Collection<T> items, ToLongFunction<T> metric, int limit,
+        Function<T, Map<String, Object>> describer)
+    {
+        // Read the metric only once per item since the statistics keep changing while we sort.
+        return items.stream().map(item -> new SimpleImmutableEntry<>(item, metric.applyAsLong(item)))
+            .sorted(Map.Entry.<T, Long>comparingByValue().reversed()).limit(limit).map(e -> describer.apply(e.getKey()))
+            .collect(Collectors.toList());
+    }
+
+    private Map<String, Object> describe(Channel chan, long now)
+    {
+        Map<String, Object> description = new HashMap<>();
+        description.put("key", chan.key);
+        description.put("wiki", chan.wiki);
+        description.put("name", chan.name);
+        description.put("type", chan.type);
+        description.put("age", now - chan.createdTime);
+        description.put("idle", now - chan.lastActivity);
+        description.put("loaded", chan.isHydrated());
+        description.put("users", chan.getUserCount());
+        description.put("historyBytes", chan.getHistoryBytes());
+        description.put("messagesPerMinute", chan.getMessagesPerMinute(now));
+        description.put("messages", chan.getMessageCount());
+        description.put("duplicateMessages", chan.duplicateMessages);
+        return description;
+    }
+
+    private Map<String, Object> describe(ChannelBox partition, long now)
+    {
+        Collection<Channel> chans = partition.getChannels();
+        Map<String, Object> description = new HashMap<>();
+        description.put("wiki", partition.getWiki());
+        description.put("channels", chans.size());
+        description.put("loadedChannels", chans.stream().filter(Channel::isHydrated).count());
+        description.put("users", chans.stream().mapToInt(Channel::getUserCount).sum());
+        description.put("historyBytes", chans.stream().mapToLong(Channel::getHistoryBytes).sum());
+        description.put("messagesPerMinute", partition.messageRate.getPerMinute(now));
+        description.put("messages", partition.messageRate.getTotal());
+        return description;
+    }
+
+    private Map<String, Object> describe(User user, long now)
+    {
+        Map<String, Object> description = new HashMap<>();
+        description.put("name", user.name);
+        description.put("queueSize", user.queueSize);
+        description.put("idle", now - user.timeOfLastMessage);
+        return description;
+    }
+
+    /**
+     * Handler called when a socket is closed/disconnected.
+     * 
+     * @param ws the WebSocket
+     */
+    private void wsDisconnect(WebSocket ws)
+    {
+        synchronized (bigLock) {
+
+            User user = users.bySocket(ws);
+
+            if (user == null) {
+                return;
+            }
+
+            NetfluxFlightRecorder.Disconnect event = NetfluxFlightRecorder.disconnect();
+
+            users.removeUser(user);
+            user.connected = false;
+            if (user.session != null && user.session.user == user) {
+                // Keep the session until it expires, so that the client can resume it.
+                user.session.user = null;
+                user.session.detachedSince = System.currentTimeMillis();
+            }
+
+            for (Channel chan : user.chans) {
+                chan.removeUser(user);
+                List<Object> leaveMsg = buildDefault(user.name, CMD_LEAVE, chan.key, "Quit: [ wsDisconnect() ]");
+                String msgStr = display(leaveMsg);
+                sendChannelMessage(CMD_LEAVE, user, chan, msgStr);
+                // Empty channels are kept so that their key can be joined again after a reconnection or a restart,
+                // cleanEmpty() unloads and removes them.
+            }
+
+            event.commit(user.name, user.chans.size());
+        }
+    }
+
+    /**
+     * Tell a client disconnected by the server that its session is over, and close its connection if the WebSocket
+     * implementation allows it. The frames it sends afterwards are ignored. Called without holding the backend lock.
+     * 
+     * @param user the disconnected user
+     */
+    private void closeSocket(User user)
+    {
+        try {
+            // Not interleaved with the messages being sent to the user by another thread.
+            synchronized (user) {
+                user.sock.send(display(buildError(0, ERR_CONNECTION_RESET, "")));
+            }
+            if (user.sock instanceof Closeable) {
+                ((Closeable) user.sock).close();
+            }
+        } catch (Exception e) {
+            logger.debug("Failed to close the Netflux connection: [{}]", e.getMessage());
+        }
+    }
+
+    /**
+     * Derive the session id of a user from its name and the server secret, so that the connections don't have to keep
+     * it. The user name is shared with the other users while the session id must be kept secret by the client, hence
+     * the HMAC.
+     * 
+     * @param user the user
+     * @return the session id of the user
+     */
+    private String getSessionId(User user)
+    {
+        byte[] digest;
+        try {
+            Mac mac = Mac.getInstance(SESSION_ID_ALGORITHM);
+            mac.init(this.sessionKey);
+            digest = mac.doFinal(user.name.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to compute the session id", e);
+        }
+        StringBuilder sb = new StringBuilder(SESSION_ID_BYTES * 2);
+        for (int i = 0; i < SESSION_ID_BYTES; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static SecretKeySpec newSessionKey()
+    {
+        byte[] secret = new byte[32];
+        RANDOM.nextBytes(secret);
+        return new SecretKeySpec(secret, SESSION_ID_ALGORITHM);
+    }
+
+    private static String getRandomHexString(int numchars)
+    {
+        StringBuffer sb = new StringBuffer();
+        while (sb.length() < numchars) {
+            sb.append(Integer.toHexString(RANDOM.nextInt()));
+        }
+        return sb.toString().substring(0, numchars);
+    }
+
+    private String display(List<Object> list)
+    {
+        try {
+            return mapper.writeValueAsString(list);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to serialize message", e);
+        }
+    }
+
+    /**
+     * Add a message to the sending queue of a User.
      * 
      * @param toUser the User
      * @param msgStr the string message
      */
     private void sendMessage(User toUser, String msgStr)
     {
+        if (toUser.toBeSent == null) {
+            toUser.toBeSent = new ArrayList<String>();
+        }
         toUser.toBeSent.add(msgStr);
+        toUser.queueSize = toUser.toBeSent.size();
+        if (!toUser.scheduled) {
+            toUser.scheduled = true;
+            pendingUsers.add(toUser);
+        }
     }
 
-    private boolean isCheckpoint(String msgStr)
+    /**
+     * Check if a MSG frame built by {@link #buildMessageFrame(String, String, String)} carries a checkpoint, without
+     * parsing it: the payload is the element following the MSG command and the recipient, which don't contain quotes.
+     * 
+     * @param msgStr the frame
+     * @return {@code true} if the payload of the frame is a checkpoint
+     */
+    private static boolean isCheckpoint(String msgStr)
     {
-        try {
-            ArrayList<?> msg = mapper.readValue(msgStr, ArrayList.class);
-            return ((String) msg.get(msg.size() - 1)).indexOf("cp|[4,[") == 0;
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to parse message.", e);
+        int cmd = msgStr.indexOf(MSG_MARKER);
+        if (cmd < 0) {
+            return false;
+        }
+        int recipientEnd = msgStr.indexOf('"', cmd + MSG_MARKER.length());
+        return recipientEnd >= 0 && msgStr.startsWith(CHECKPOINT_MARKER, recipientEnd + 2);
+    }
+
+    /**
+     * Broadcast a message to a channel.
+     * 
+     * @param cmd the message type/command
+     * @param me the sender
+     * @param chan the channel where the message is sent
+     * @param msgStr the message
+     * @return the number of users the message was sent to
+     */
+    private int sendChannelMessage(String cmd, User me, Channel chan, String msgStr)
+    {
+        return sendChannelMessage(cmd, me, chan, msgStr, null);
+    }
+
+    /**
+     * Broadcast a message to a channel, see {@link #sendChannelMessage(String, User, Channel, String)}.
+     * 
+     * @param text the content of the MSG, if it's a string, used to build the frame sent to the clients supporting
+     *            {@link NetfluxExtension#RAW} without decoding it from the JSON frame
+     */
+    private int sendChannelMessage(String cmd, User me, Channel chan, String msgStr, String text)
+    {
+        // Messages can be sent to a channel without joining it, even after it was unloaded.
+        if (chan.hydrate(historyKeeper, historyStore, bufferPool)) {
+            saveHistoryLater(chan);
+        }
+        chan.lastActivity = System.currentTimeMillis();
+        boolean checkpoint = false;
+        if (CMD_MSG.equals(cmd)) {
+            chan.countMessage(chan.lastActivity);
+            chan.partition.messageRate.mark(chan.lastActivity);
+            checkpoint = isCheckpoint(msgStr);
+        }
+        if (CMD_MSG.equals(cmd) && chan.pendingMembership != null) {
+            // Keep the order between the membership changes and the messages.
+            flushMembership(chan);
+        }
+        boolean coalesce = !CMD_MSG.equals(cmd) && membershipWindow > 0;
+        boolean coalesced = false;
+        String rawMsgStr = null;
+        int fanOut = 0;
+        for (User u : chan.users.values()) {
+            if (u == null || (CMD_MSG.equals(cmd) && u.equals(me))) {
+                continue;
+            }
+            if (coalesce && !u.equals(me) && NetfluxExtension.MEMBERS.isEnabled(u.extensions)) {
+                coalesced = true;
+            } else if (CMD_MSG.equals(cmd) && NetfluxExtension.RAW.isEnabled(u.extensions)) {
+                if (rawMsgStr == null) {
+                    rawMsgStr = toRawFrame(msgStr, text);
+                }
+                sendMessage(u, rawMsgStr);
+            } else {
+                sendMessage(u, msgStr);
+            }
+            fanOut++;
+        }
+        if (coalesced) {
+            addMembershipChange(chan, cmd, me.name);
+        }
+        if (fanOut >= parallelFanOutThreshold) {
+            // Let other threads help sending the messages, each of them handling about parallelFanOutThreshold users.
+            fanOutHelpers = Math.max(fanOutHelpers, Math.min(fanOutThreads, fanOut / parallelFanOutThreshold));
+        }
+        if (eventPipeline.isEnabled()) {
+            publishEvent(cmd, checkpoint, me, chan, msgStr);
+        }
+        if (chan.policy.isHistoryEnabled() && Arrays.asList(CMD_MSG, CMD_LEAVE).contains(cmd)) {
+            if (checkpoint) {
+                // Prune old messages from memory
+                NetfluxFlightRecorder.Checkpoint event = NetfluxFlightRecorder.checkpoint();
+                int pruned = chan.pruneHistory(bufferPool);
+                event.commit(chan.key, pruned, chan.messages.size(), chan.getHistoryBytes());
+            }
+            chan.addToHistory(msgStr, checkpoint, bufferPool);
+            if (chan.trimHistory(bufferPool) < 0) {
+                logger.debug("The history of channel [{}] exceeds its limits but has no checkpoint to trim it up to.",
+                    chan.key);
+            }
+        }
+        return fanOut;
+    }
+
+    private void addMembershipChange(Channel chan, String cmd, String userName)
+    {
+        if (chan.pendingMembership == null) {
+            chan.pendingMembership = new MembershipChanges();
+            scheduler.schedule(() -> {
+                NetfluxFlightRecorder.LockWait lockEvent = NetfluxFlightRecorder.lockWait("flushMembership");
+                synchronized (bigLock) {
+                    lockEvent.acquired();
+                    flushMembership(chan);
+                }
+                sendPendingMessages(null);
+            }, membershipWindow, TimeUnit.MILLISECONDS);
+        }
+        if (CMD_JOIN.equals(cmd)) {
+            chan.pendingMembership.join(userName);
+        } else {
+            chan.pendingMembership.leave(userName);
+        }
+    }
+
+    /**
+     * Send the pending membership changes of a channel to the users supporting {@link NetfluxExtension#MEMBERS}.
+     * 
+     * @param chan the channel
+     */
+    private void flushMembership(Channel chan)
+    {
+        MembershipChanges changes = chan.pendingMembership;
+        if (changes == null) {
+            return;
+        }
+        chan.pendingMembership = null;
+        if (!chan.isHydrated()) {
+            return;
+        }
+        String msgStr = display(buildMembers(chan.key, changes.joined, changes.left));
+        for (User u : chan.users.values()) {
+            if (u != null && NetfluxExtension.MEMBERS.isEnabled(u.extensions)) {
+                sendMessage(u, msgStr);
+            }
         }
     }
 
-    /**
-     * Broadcast a message to a channel.
-     * 
-     * @param cmd the message type/command
-     * @param me the sender
-     * @param chan the channel where the message is sent
-     * @param msgStr the message
-     */
-    private void sendChannelMessage(String cmd, User me, Channel chan, String msgStr)
+    private void publishEvent(String cmd, boolean checkpoint, User me, Channel chan, String msgStr)
     {
-        chan.users.values().stream().filter(Objects::nonNull).filter(u -> !CMD_MSG.equals(cmd) || !u.equals(me))
-            .forEach(u -> sendMessage(u, msgStr));
-        if (USE_HISTORY_KEEPER && Arrays.asList(CMD_MSG, CMD_LEAVE).contains(cmd)) {
-            if (CMD_MSG.equals(cmd) && isCheckpoint(msgStr)) {
-                // Prune old messages from memory
-                LinkedList<String> msgsNext = new LinkedList<String>();
-                for (Iterator<String> it = chan.messages.descendingIterator(); it.hasNext();) {
-                    String msg = it.next();
-                    msgsNext.addFirst(msg);
-                    if (isCheckpoint(msg)) {
-                        break;
-                    }
-                }
-                chan.messages = msgsNext;
-            }
-            chan.messages.add(msgStr);
+        NetfluxEvent.Type type;
+        if (CMD_JOIN.equals(cmd)) {
+            type = NetfluxEvent.Type.JOIN;
+        } else if (CMD_LEAVE.equals(cmd)) {
+            type = NetfluxEvent.Type.LEAVE;
+        } else {
+            type = checkpoint ? NetfluxEvent.Type.CHECKPOINT : NetfluxEvent.Type.MESSAGE;
         }
+        eventPipeline
+            .publish(new NetfluxEvent(type, chan.lastActivity, chan.key, chan.name, chan.type, me.name, msgStr));
     }
 
     /*
@@ -495,6 +1941,51 @@ public class NetfluxBackend implements WebSocketHandler
         return msg;
     }
 
+    private ArrayList<Object> buildMembers(String chanName, Collection<String> joined, Collection<String> left)
+    {
+        ArrayList<Object> msg = buildDefault("", CMD_MEMBERS, chanName, null);
+        msg.add(joined);
+        msg.add(left);
+        return msg;
+    }
+
+    /**
+     * Build a relayed MSG frame, equivalent to the serialization of {@link #buildMessage(Integer, String, String,
+     * Object)}, from the already serialized payload.
+     */
+    private String buildMessageFrame(String userId, String obj, String rawPayload)
+    {
+        return new StringBuilder(rawPayload.length() + userId.length() + obj.length() + 16).append("[0,\"")
+            .append(userId).append("\",").append(MSG_MARKER).append(obj).append("\",").append(rawPayload).append(']')
+            .toString();
+    }
+
+    /**
+     * Convert a MSG frame built by {@link #buildMessageFrame(String, String, String)} to a {@link RawFrame}.
+     * 
+     * @param msgStr the JSON frame
+     * @param text the content of the message if it's already known, {@code null} to decode it from the frame
+     * @return the raw frame, or the JSON frame if the content of the message is not a string
+     */
+    private String toRawFrame(String msgStr, String text)
+    {
+        int cmd = msgStr.indexOf(MSG_MARKER);
+        int recipientEnd = (cmd < 0) ? -1 : msgStr.indexOf('"', cmd + MSG_MARKER.length());
+        int payloadStart = recipientEnd + 2;
+        if (recipientEnd < 0 || payloadStart >= msgStr.length() || msgStr.charAt(payloadStart) != '"') {
+            return msgStr;
+        }
+        String payload = text;
+        if (payload == null) {
+            try {
+                payload = mapper.readValue(msgStr.substring(payloadStart, msgStr.length() - 1), String.class);
+            } catch (IOException e) {
+                return msgStr;
+            }
+        }
+        return RawFrame.format(msgStr.substring(0, payloadStart - 1) + ']', payload);
+    }
+
     private ArrayList<Object> buildError(Integer seq, String errorType, String errorMessage)
     {
         ArrayList<Object> msg = new ArrayList<>();
@@ -513,16 +2004,6 @@ public class NetfluxBackend implements WebSocketHandler
      */
     private void onMessage(String message, WebSocket ws)
     {
-        ArrayList<?> msg;
-        try {
-            msg = mapper.readValue(message, ArrayList.class);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to parse received message.", e);
-        }
-        if (msg == null) {
-            return;
-        }
-
         User user = users.bySocket(ws);
 
         if (user == null) {
@@ -530,23 +2011,22 @@ public class NetfluxBackend implements WebSocketHandler
             return;
         }
 
-        long now = System.currentTimeMillis();
-        if (user != null) {
-            user.timeOfLastMessage = now;
-        }
+        user.timeOfLastMessage = System.currentTimeMillis();
 
-        // It's way too much of a pain to hunt down the setTimeout() equiv
-        // in netty so I'm just going to run the check every time something comes in
-        // on the websocket to disconnect anyone who hasn't written to the WS in
-        // more than 30 seconds.
-        List<WebSocket> socks = new LinkedList<WebSocket>(users.userBySocket.keySet());
-        for (WebSocket sock : socks) {
-            if (now - users.bySocket(sock).timeOfLastMessage > TIMEOUT_MILLISECONDS) {
-                wsDisconnect(sock);
-            }
+        if (message.length() >= largeFrameThreshold && !RawFrame.isRaw(message) && relayLargeMessage(user, message)) {
+            return;
         }
 
-        // We have to clean unused channel
+        ArrayList<?> msg;
+        try {
+            msg = RawFrame.isRaw(message) ? RawFrame.parse(message, mapper)
+                : mapper.readValue(message, ArrayList.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse received message.", e);
+        }
+        if (msg == null) {
+            return;
+        }
 
         Integer seq = (Integer) msg.get(0);
         String cmd = msg.get(1).toString();
@@ -570,11 +2050,261 @@ public class NetfluxBackend implements WebSocketHandler
             // MSG (patch): - Send an ACK - Check if the history of the channel is requested - Yes : send the history -
             // No : transfer the message to the recipient
             onMessageCommand(user, obj, msg, seq);
+        } else if (CMD_EXT.equals(cmd)) {
+            // EXT: - Enable the requested extensions that are supported - Send an ACK listing the enabled extensions
+            onExtensionCommand(user, msg, seq);
+        } else if (CMD_IDENT.equals(cmd)) {
+            // IDENT: - Resume the session of a previous connection - Send an ACK
+            onIdentCommand(user, obj, seq);
+        }
+    }
+
+    /**
+     * Disconnect the users who haven't written to their WebSocket for more than 30 seconds. The users are checked
+     * without holding the lock, which is only taken if some users timed out.
+     */
+    private void disconnectTimedOutUsers()
+    {
+        try {
+            NetfluxFlightRecorder.TimeoutSweep sweepEvent = NetfluxFlightRecorder.timeoutSweep();
+            long now = System.currentTimeMillis();
+            List<User> timedOut = new ArrayList<>();
+            for (User user : users.userBySocket.values()) {
+                if (now - user.timeOfLastMessage > TIMEOUT_MILLISECONDS) {
+                    timedOut.add(user);
+                }
+            }
+            int disconnected = 0;
+            if (!timedOut.isEmpty()) {
+                NetfluxFlightRecorder.LockWait lockEvent = NetfluxFlightRecorder.lockWait("timeoutSweep");
+                synchronized (bigLock) {
+                    lockEvent.acquired();
+                    now = System.currentTimeMillis();
+                    for (User user : timedOut) {
+                        // The user may have sent a message, possibly a PING that doesn't take the lock, since the scan.
+                        if (user.connected && now - user.timeOfLastMessage > TIMEOUT_MILLISECONDS) {
+                            wsDisconnect(user.sock);
+                            disconnected++;
+                        }
+                    }
+                }
+                sendPendingMessages(null);
+            }
+            expireSessions();
+            sweepEvent.commit(users.userBySocket.size(), disconnected);
+        } catch (Exception e) {
+            logger.warn("Failed to disconnect the Netflux users who timed out.", e);
+        }
+    }
+
+    /**
+     * Forget the sessions whose client didn't reconnect in time. The sessions are checked without holding the lock,
+     * which is only taken if some sessions expired.
+     */
+    private void expireSessions()
+    {
+        long now = System.currentTimeMillis();
+        List<Session> expired = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            if (session.user == null && now - session.detachedSince > TIMEOUT_MILLISECONDS) {
+                expired.add(session);
+            }
+        }
+        if (!expired.isEmpty()) {
+            NetfluxFlightRecorder.LockWait lockEvent = NetfluxFlightRecorder.lockWait("expireSessions");
+            synchronized (bigLock) {
+                lockEvent.acquired();
+                for (Session session : expired) {
+                    // The session may have been resumed since the scan.
+                    if (session.user == null && now - session.detachedSince > TIMEOUT_MILLISECONDS) {
+                        sessions.remove(session.id, session);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Recognize a PING frame ({@code [seq,"PING"]}, possibly followed by other elements) without parsing it. The
+     * sequence number is echoed as is in the ACK, so it must be a canonical JSON integer: a PING with a sign, a leading
+     * zero, spaces or more than {@link #MAX_SEQUENCE_DIGITS} digits goes through the regular path.
+     * 
+     * @param message the received message
+     * @return the sequence number of the PING, or {@code null} if the message is not a PING with a canonical sequence
+     *         number
+     */
+    private static String getPingSequence(String message)
+    {
+        int length = message.length();
+        if (length > MAX_PING_LENGTH) {
+            return null;
+        }
+        int i = getSequenceEnd(message);
+        int end = i + PING_MARKER.length();
+        if (i == 1 || (i > 2 && message.charAt(1) == '0') || end >= length || !message.startsWith(PING_MARKER, i)
+            || (message.charAt(end) != ']' && message.charAt(end) != ',')) {
+            return null;
+        }
+        return message.substring(1, i);
+    }
+
+    /**
+     * @param message a received frame
+     * @return the position following the ASCII digits of the sequence number at the start of the frame, {@code 1} if
+     *         there's none
+     */
+    private static int getSequenceEnd(String message)
+    {
+        if (message.isEmpty() || message.charAt(0) != '[') {
+            return 1;
+        }
+        int i = 1;
+        while (i < message.length() && i <= MAX_SEQUENCE_DIGITS && message.charAt(i) >= '0'
+            && message.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param message a received frame
+     * @return the sequence number of the frame, read without parsing the frame, {@code 0} if there's none
+     */
+    private static Integer getSequence(String message)
+    {
+        int end = getSequenceEnd(message);
+        return (end > 1) ? Integer.valueOf(message.substring(1, end)) : 0;
+    }
+
+    /**
+     * Send a message to a user from the current thread, bypassing the sending queue. Must be called without holding the
+     * lock.
+     * 
+     * @param user the recipient
+     * @param msgStr the message
+     */
+    private void sendDirect(User user, String msgStr)
+    {
+        try {
+            synchronized (user) {
+                user.sock.send(msgStr);
+            }
+        } catch (Exception e) {
+            wsDisconnect(user.sock);
+            // Deliver the LEAVE messages, there's no message handling to do it on this path.
+            sendPendingMessages(null);
+        }
+    }
+
+    private void onExtensionCommand(User user, List<?> msg, Integer seq)
+    {
+        if (msg.size() < 3 || !(msg.get(2) instanceof List)) {
+            sendMessage(user, display(buildError(seq, ERR_INVALID, "")));
+            return;
+        }
+        user.extensions = NetfluxExtension.parse((List<?>) msg.get(2));
+        List<String> enabled = new ArrayList<>();
+        for (NetfluxExtension extension : NetfluxExtension.values()) {
+            if (extension.isEnabled(user.extensions)) {
+                enabled.add(extension.name());
+            }
+        }
+        ArrayList<Object> ackMsg = buildAck(seq);
+        ackMsg.add(enabled);
+        sendMessage(user, display(ackMsg));
+    }
+
+    /**
+     * Get the session of a user, creating it on the first message.
+     * 
+     * @param user the user
+     * @return the session of the user
+     */
+    private Session getSession(User user)
+    {
+        if (user.session == null) {
+            user.session = new Session(getSessionId(user), user);
+            sessions.put(user.session.id, user.session);
+        }
+        return user.session;
+    }
+
+    private void onIdentCommand(User user, String obj, Integer seq)
+    {
+        Session session = (obj == null) ? null : sessions.get(obj);
+        if (session == null) {
+            // Unknown or expired session: the client starts a new one.
+            sendMessage(user, display(buildError(seq, ERR_NO_ENTRY, "")));
+            return;
+        }
+        if (user.session != null && user.session != session) {
+            sessions.remove(user.session.id, user.session);
+        }
+        // The previous connection may not be detected as closed yet, it can't use the session anymore.
+        session.user = user;
+        user.session = session;
+        // The client resumes with the session id of its last IDENT message next time.
+        sessions.remove(session.id, session);
+        session.id = getSessionId(user);
+        sessions.put(session.id, session);
+        sendMessage(user, display(buildAck(seq)));
+    }
+
+    /**
+     * Check whether the history of a channel has to be read from the store before the channel is loaded. If so, the
+     * message being handled is put aside, without side effects: it's handled again once the history is read without
+     * holding the backend lock. Called with the backend lock held.
+     * 
+     * @param chan the channel the message is about
+     * @return {@code true} if the message must be handled again once the channel history is read
+     */
+    private boolean deferUntilLoaded(Channel chan)
+    {
+        int version = chan.isHydrated() ? -1 : chan.getStoreVersionToLoad();
+        if (version < 0) {
+            return false;
+        }
+        // Keep cleanEmpty() from dropping the history read ahead.
+        chan.lastActivity = System.currentTimeMillis();
+        channelToLoad = chan;
+        channelToLoadVersion = version;
+        return true;
+    }
+
+    /**
+     * Update the store with the history of a channel once the backend lock is released.
+     * 
+     * @param chan a channel whose history moved in or out of memory
+     */
+    private void saveHistoryLater(Channel chan)
+    {
+        unsavedChannels.add(chan);
+        if (savingHistories.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::saveHistories);
+            } catch (RejectedExecutionException e) {
+                // Disposed: the history of the channels is in the snapshot.
+            }
+        }
+    }
+
+    private void saveHistories()
+    {
+        savingHistories.set(false);
+        for (Channel chan = unsavedChannels.poll(); chan != null; chan = unsavedChannels.poll()) {
+            try {
+                if (chan.saveHistory(historyStore)) {
+                    unsavedChannels.add(chan);
+                }
+            } catch (Exception e) {
+                logger.warn("Failed to save the history of channel [{}].", chan.key, e);
+            }
         }
     }
 
     private void onJoinCommand(User user, String obj, Integer seq)
     {
+        NetfluxFlightRecorder.Command event = NetfluxFlightRecorder.command();
         // Length == 32 ==> Cryptpad key
         // Length == 48 ==> RTFrontend key
         if (obj != null && obj.length() != 0 && obj.length() != 32 && obj.length() != 48) {
@@ -582,26 +2312,45 @@ public class NetfluxBackend implements WebSocketHandler
             sendMessage(user, display(errorMsg));
             return;
         }
-        Channel chan = (obj == null) ? null : channels.byKey(obj);
+        Channel chan = (obj == null) ? null : getChannel(obj);
         // No key provided : create a new channel
         if (chan == null && StringUtils.isEmpty(obj)) {
             chan = createChannel(getRandomHexString(32), null);
+            if (chan == null) {
+                sendMessage(user, display(buildError(seq, ERR_NO_SPACE, "")));
+                return;
+            }
         } else if (chan == null) {
             ArrayList<Object> errorMsg = buildError(seq, ERR_NO_ENTRY, "");
             sendMessage(user, display(errorMsg));
             return;
         }
+        if (deferUntilLoaded(chan)) {
+            return;
+        }
+        if (chan.hydrate(historyKeeper, historyStore, bufferPool)) {
+            saveHistoryLater(chan);
+        }
         ArrayList<Object> jackMsg = buildJack(seq, chan.key);
         sendMessage(user, display(jackMsg));
         user.chans.add(chan);
-        for (String userId : chan.users.keySet()) {
-            ArrayList<Object> inChannelMsg = buildDefault(userId, CMD_JOIN, chan.key, null);
-            sendMessage(user, display(inChannelMsg));
+        // Send the pending membership changes to the current members first: the snapshot sent to the new user already
+        // includes them, so it must not get them again with the next batch.
+        flushMembership(chan);
+        if (NetfluxExtension.MEMBERS.isEnabled(user.extensions)) {
+            sendMessage(user, display(buildMembers(chan.key, chan.users.keySet(), Collections.emptyList())));
+        } else {
+            for (String userId : chan.users.keySet()) {
+                ArrayList<Object> inChannelMsg = buildDefault(userId, CMD_JOIN, chan.key, null);
+                sendMessage(user, display(inChannelMsg));
+            }
         }
-        chan.users.put(user.name, user);
-        channels.cleanEmpty();
+        chan.addUser(user);
+        chan.partition.cleanEmpty();
         ArrayList<Object> joinMsg = buildDefault(user.name, CMD_JOIN, chan.key, null);
-        sendChannelMessage(CMD_JOIN, user, chan, display(joinMsg));
+        String joinMsgStr = display(joinMsg);
+        int fanOut = sendChannelMessage(CMD_JOIN, user, chan, joinMsgStr);
+        event.commit(CMD_JOIN, chan.key, fanOut, joinMsgStr.length());
     }
 
     private void onLeaveCommand(User user, String obj, Integer seq)
@@ -610,46 +2359,69 @@ public class NetfluxBackend implements WebSocketHandler
         if (obj == null || obj.length() == 0) {
             errorMsg = buildError(seq, ERR_INVALID, "undefined");
         }
-        if (errorMsg != null && channels.byKey(obj) == null) {
+        if (errorMsg == null && getChannel(obj) == null) {
             errorMsg = buildError(seq, ERR_NO_ENTRY, obj);
         }
-        if (errorMsg != null && !channels.byKey(obj).users.containsKey(user.name)) {
+        if (errorMsg == null && !user.chans.contains(getChannel(obj))) {
             errorMsg = buildError(seq, "NOT_IN_CHAN", obj);
         }
         if (errorMsg != null) {
             sendMessage(user, display(errorMsg));
             return;
         }
+        NetfluxFlightRecorder.Command event = NetfluxFlightRecorder.command();
         ArrayList<Object> ackMsg = buildAck(seq);
         sendMessage(user, display(ackMsg));
-        Channel chan = channels.byKey(obj);
-        chan.users.remove(user.name);
+        Channel chan = getChannel(obj);
+        chan.removeUser(user);
         user.chans.remove(chan);
+        user.forgetSequence(chan.key);
         ArrayList<Object> leaveMsg = buildDefault(user.name, CMD_LEAVE, obj, "");
-        sendChannelMessage(CMD_LEAVE, user, chan, display(leaveMsg));
+        String leaveMsgStr = display(leaveMsg);
+        int fanOut = sendChannelMessage(CMD_LEAVE, user, chan, leaveMsgStr);
+        event.commit(CMD_LEAVE, chan.key, fanOut, leaveMsgStr.length());
     }
 
     private void onMessageCommand(User user, String obj, List<?> msg, Integer seq)
     {
-        ArrayList<Object> ackMsg = buildAck(seq);
-        sendMessage(user, display(ackMsg));
-        if (USE_HISTORY_KEEPER && obj.equals(historyKeeper)) {
+        if (obj.equals(historyKeeper)) {
             ArrayList<String> msgHistory;
             try {
                 msgHistory = new ObjectMapper().readValue(msg.get(3).toString(),
                     this.mapper.getTypeFactory().constructCollectionType(List.class, String.class));
             } catch (IOException e) {
                 msgHistory = null;
-                e.printStackTrace();
+                logger.debug("Invalid history keeper request: [{}]", e.getMessage());
             }
             String text = (msgHistory == null) ? "" : msgHistory.get(0);
-            if (text.equals("GET_HISTORY")) {
+            Channel chan = text.equals(CMD_GET_HISTORY) ? getChannel(msgHistory.get(1)) : null;
+            if (chan != null && deferUntilLoaded(chan)) {
+                return;
+            }
+            ArrayList<Object> ackMsg = buildAck(seq);
+            sendMessage(user, display(ackMsg));
+            if (text.equals(CMD_GET_HISTORY)) {
                 String chanName = msgHistory.get(1);
-                Channel chan = channels.byKey(chanName);
-                if (chan != null && chan.messages != null) {
-                    for (String msgStr : chan.messages) {
-                        sendMessage(user, msgStr);
+                if (chan != null) {
+                    NetfluxFlightRecorder.Command event = NetfluxFlightRecorder.command();
+                    long bytes = 0;
+                    UnaryOperator<String> toRaw =
+                        NetfluxExtension.RAW.isEnabled(user.extensions) ? msgStr -> toRawFrame(msgStr, null) : null;
+                    if (chan.isHydrated()) {
+                        // Large entries are decoded one by one, only when replayed, and the decoded and RAW forms are
+                        // shared with the users replaying the history at the same time.
+                        for (HistoryEntry entry : chan.messages) {
+                            String msgStr = entry.getText();
+                            sendMessage(user, (toRaw != null) ? entry.getRawFrame(toRaw) : msgStr);
+                            bytes += msgStr.length();
+                        }
+                    } else {
+                        for (String msgStr : chan.getStoredHistory(historyStore)) {
+                            sendMessage(user, (toRaw != null) ? toRaw.apply(msgStr) : msgStr);
+                            bytes += msgStr.length();
+                        }
                     }
+                    event.commit(CMD_GET_HISTORY, chan.key, 1, bytes);
                 }
                 String endHistoryMsg = "{\"state\":1, \"channel\":\"" + chanName + "\"}";
                 ArrayList<Object> msgEndHistory = buildMessage(0, historyKeeper, user.name, endHistoryMsg);
@@ -657,22 +2429,104 @@ public class NetfluxBackend implements WebSocketHandler
             }
             return;
         }
-        if (obj.length() != 0 && channels.byKey(obj) == null && users.byName(obj) == null) {
+        Object payload = (msg.size() > 3) ? msg.get(3) : null;
+        String rawPayload;
+        try {
+            rawPayload = mapper.writeValueAsString(payload);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize message", e);
+        }
+        relayMessage(user, seq, obj, rawPayload, (payload instanceof String) ? (String) payload : null);
+    }
+
+    /**
+     * Relay a large MSG frame without parsing its payload: only the first elements are read and the payload is copied
+     * as is from the received frame to the relayed one.
+     * 
+     * @param user the sender
+     * @param message the received frame
+     * @return {@code true} if the message was relayed, {@code false} if it must go through the regular path
+     */
+    private boolean relayLargeMessage(User user, String message)
+    {
+        try (JsonParser parser = mapper.getFactory().createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY || parser.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+                return false;
+            }
+            int seq = parser.getIntValue();
+            if (parser.nextToken() != JsonToken.VALUE_STRING || !CMD_MSG.equals(parser.getText())
+                || parser.nextToken() != JsonToken.VALUE_STRING) {
+                return false;
+            }
+            String obj = parser.getText();
+            JsonToken payload = parser.nextToken();
+            if (obj.equals(historyKeeper) || payload == null || payload == JsonToken.END_ARRAY) {
+                return false;
+            }
+            int start = (int) parser.getTokenLocation().getCharOffset();
+            // The string payloads are skipped without being decoded.
+            parser.skipChildren();
+            if (parser.nextToken() != JsonToken.END_ARRAY) {
+                return false;
+            }
+            int end = (int) parser.getTokenLocation().getCharOffset();
+            relayMessage(user, seq, obj, message.substring(start, end), null);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Relay a message to a channel or a user.
+     * 
+     * @param user the sender
+     * @param seq the sequence number of the received MSG
+     * @param obj the channel key or user name
+     * @param rawPayload the JSON serialization of the message payload
+     * @param text the message payload if it's a known string, {@code null} otherwise
+     */
+    private void relayMessage(User user, Integer seq, String obj, String rawPayload, String text)
+    {
+        Channel target = getChannel(obj);
+        if (target != null && deferUntilLoaded(target)) {
+            return;
+        }
+        if (seq != null && user.session != null && user.session.isTooOld(obj, seq)) {
+            // Rejected instead of ACKed: it can't be known whether the message was already relayed.
+            sendMessage(user, display(buildError(seq, ERR_OUT_OF_RANGE, obj)));
+            return;
+        }
+        ArrayList<Object> ackMsg = buildAck(seq);
+        sendMessage(user, display(ackMsg));
+        if (obj.length() != 0 && getChannel(obj) == null && users.byName(obj) == null) {
             ArrayList<Object> errorMsg = buildError(seq, ERR_NO_ENTRY, obj);
             sendMessage(user, display(errorMsg));
             return;
         }
-        if (channels.byKey(obj) != null) {
-            ArrayList<Object> msgMsg = buildMessage(0, user.name, obj, msg.get(3));
-            Channel chan = channels.byKey(obj);
-            sendChannelMessage(CMD_MSG, user, chan, display(msgMsg));
+        if (seq != null && !getSession(user).accept(obj, seq)) {
+            // The client sent this message again: it's ACKed but neither relayed nor stored again.
+            duplicateMessages.increment();
+            Channel chan = getChannel(obj);
+            if (chan != null) {
+                chan.countDuplicateMessage();
+            }
             return;
         }
-        if (users.byName(obj) != null) {
-            ArrayList<Object> msgMsg = buildMessage(0, user.name, obj, msg.get(3));
-            sendMessage(users.byName(obj), display(msgMsg));
+        if (getChannel(obj) != null) {
+            NetfluxFlightRecorder.Command event = NetfluxFlightRecorder.command();
+            Channel chan = getChannel(obj);
+            String msgStr = buildMessageFrame(user.name, obj, rawPayload);
+            int fanOut = sendChannelMessage(CMD_MSG, user, chan, msgStr, text);
+            event.commit(CMD_MSG, chan.key, fanOut, msgStr.length());
             return;
         }
+        User recipient = users.byName(obj);
+        if (recipient != null) {
+            String msgStr = buildMessageFrame(user.name, obj, rawPayload);
+            sendMessage(recipient,
+                NetfluxExtension.RAW.isEnabled(recipient.extensions) ? toRawFrame(msgStr, text) : msgStr);
+        }
     }
 
     private static class SendJob
@@ -688,20 +2542,104 @@ public class NetfluxBackend implements WebSocketHandler
         public List<String> messages;
     }
 
-    private SendJob getSendJob()
+    /**
+     * Get the next messages to send.
+     * 
+     * @param done the jobs that were just completed by the calling thread, if any
+     * @return the messages to send to the next pending users, at most {@link #parallelFanOutThreshold} of them, or an
+     *         empty list if there's nothing left to send
+     */
+    private List<SendJob> getSendJobs(List<SendJob> done)
     {
+        NetfluxFlightRecorder.LockWait lockEvent = NetfluxFlightRecorder.lockWait("getSendJobs");
         synchronized (bigLock) {
-            for (User u : users.userByName.values()) {
-                if (u.connected && !u.toBeSent.isEmpty()) {
-                    SendJob out = new SendJob();
-                    out.messages = new ArrayList<String>(u.toBeSent);
-                    out.user = u;
-                    u.toBeSent.clear();
-                    return out;
+            lockEvent.acquired();
+            if (done != null) {
+                for (SendJob sj : done) {
+                    if (sj.user.connected && sj.user.toBeSent != null) {
+                        // New messages were queued while we were sending.
+                        pendingUsers.add(sj.user);
+                    } else {
+                        sj.user.scheduled = false;
+                    }
                 }
             }
-            return null;
+            return pollSendJobs();
+        }
+    }
+
+    /**
+     * Take the messages of the next pending users, so that a single lock acquisition serves a whole batch of users.
+     * Must be called while holding the lock.
+     * 
+     * @return the messages to send to the next pending users, at most {@link #parallelFanOutThreshold} of them
+     */
+    private List<SendJob> pollSendJobs()
+    {
+        List<SendJob> jobs = new ArrayList<>(Math.min(pendingUsers.size(), parallelFanOutThreshold));
+        for (User u = pendingUsers.poll(); u != null; u = pendingUsers.poll()) {
+            if (u.connected && u.toBeSent != null) {
+                SendJob out = new SendJob();
+                out.messages = u.toBeSent;
+                out.user = u;
+                u.toBeSent = null;
+                u.queueSize = 0;
+                jobs.add(out);
+                if (jobs.size() >= parallelFanOutThreshold) {
+                    break;
+                }
+            } else {
+                u.scheduled = false;
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Send the pending messages until there's nothing left to send.
+     * 
+     * @param first the first jobs to run, or {@code null} to get them from the pending users
+     */
+    private void sendPendingMessages(List<SendJob> first)
+    {
+        List<SendJob> jobs = (first == null) ? getSendJobs(null) : first;
+        while (!jobs.isEmpty()) {
+            for (SendJob sj : jobs) {
+                try {
+                    // The user monitor serializes the writes with the ones done by the PING fast path.
+                    synchronized (sj.user) {
+                        for (String msg : sj.messages) {
+                            if (!sj.user.connected) {
+                                break;
+                            }
+                            sj.user.sock.send(msg);
+                        }
+                    }
+                } catch (Exception e) {
+                    wsDisconnect(sj.user.sock);
+                }
+            }
+            jobs = getSendJobs(jobs);
+        }
+    }
+
+    /**
+     * Hand a batch of pending users to each of the additional sending threads requested by
+     * {@link #sendChannelMessage(String, User, Channel, String)}, and take the batch of the calling thread. Must be
+     * called while holding the lock, so that the send jobs of all the batches are resolved with a single lock
+     * acquisition.
+     * 
+     * @return the messages the calling thread has to send
+     */
+    private List<SendJob> startFanOutHelpers()
+    {
+        for (; fanOutHelpers > 0; fanOutHelpers--) {
+            List<SendJob> batch = pollSendJobs();
+            if (!batch.isEmpty()) {
+                fanOutExecutor.execute(() -> sendPendingMessages(batch));
+            }
         }
+        return pollSendJobs();
     }
 
     @Override
@@ -717,13 +2655,24 @@ public class NetfluxBackend implements WebSocketHandler
                 user = new User(sock, userName);
                 users.addUser(user);
             }
+            int connection = (capture != null) ? capture.connect() : 0;
             sock.onDisconnect(() -> {
+                if (capture != null) {
+                    capture.disconnect(connection);
+                }
+                NetfluxFlightRecorder.LockWait lockEvent = NetfluxFlightRecorder.lockWait("wsDisconnect");
                 synchronized (bigLock) {
+                    lockEvent.acquired();
                     wsDisconnect(sock);
                 }
+                // Deliver the LEAVE messages.
+                sendPendingMessages(null);
             });
 
-            ArrayList<Object> identMsg = buildDefault("", "IDENT", user.name, null);
+            ArrayList<Object> identMsg = buildDefault("", CMD_IDENT, user.name, null);
+            // Advertise the supported protocol extensions and the session id, legacy clients ignore them.
+            identMsg.add(NetfluxExtension.names());
+            identMsg.add(getSessionId(user));
             String identMsgStr = display(identMsg);
             try {
                 user.sock.send(identMsgStr);
@@ -732,26 +2681,48 @@ public class NetfluxBackend implements WebSocketHandler
                 return;
             }
 
+            User connectedUser = user;
             sock.onMessage(message -> {
-                SendJob sj;
-                synchronized (bigLock) {
-                    onMessage(message, sock);
-                    sj = getSendJob();
+                if (capture != null) {
+                    capture.message(connection, message);
                 }
-                while (sj != null) {
-                    for (String msg : sj.messages) {
-                        if (!sj.user.connected) {
-                            break;
-                        }
-                        try {
-                            sj.user.sock.send(msg);
-                        } catch (Exception e) {
-                            wsDisconnect(sj.user.sock);
-                            return;
-                        }
-                    }
-                    sj = getSendJob();
+                // Keepalive fast path: no parsing, no lock and no queue.
+                String pingSeq = getPingSequence(message);
+                if (pingSeq != null && connectedUser.connected) {
+                    connectedUser.timeOfLastMessage = System.currentTimeMillis();
+                    sendDirect(connectedUser, '[' + pingSeq + ACK_SUFFIX);
+                    return;
                 }
+                if (message.length() > maxFrameSize) {
+                    sendDirect(connectedUser,
+                        display(buildError(getSequence(message), ERR_TOO_BIG, String.valueOf(maxFrameSize))));
+                    return;
+                }
+                if (restored.getCount() > 0) {
+                    // The channels restored from the snapshot can only be joined once the restore is done. Wait
+                    // without holding the lock so that the other connections are not blocked.
+                    waitForRestore();
+                }
+                Channel toLoad;
+                do {
+                    List<SendJob> jobs;
+                    int version;
+                    NetfluxFlightRecorder.LockWait lockEvent = NetfluxFlightRecorder.lockWait("onMessage");
+                    synchronized (bigLock) {
+                        lockEvent.acquired();
+                        channelToLoad = null;
+                        onMessage(message, sock);
+                        toLoad = channelToLoad;
+                        version = channelToLoadVersion;
+                        channelToLoad = null;
+                        jobs = startFanOutHelpers();
+                    }
+                    sendPendingMessages(jobs);
+                    if (toLoad != null) {
+                        // Read the channel history without holding the lock, then handle the message again.
+                        toLoad.loadHistory(historyStore, version);
+                    }
+                } while (toLoad != null);
             });
         }
     }
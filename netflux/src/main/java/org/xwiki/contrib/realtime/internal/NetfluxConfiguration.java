@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Configuration options for the Netflux backend.
+ * 
+ * @version $Id$
+ */
+@Role
+public interface NetfluxConfiguration
+{
+    /**
+     * @return the number of milliseconds a channel without any connected user keeps its state in memory before being
+     *         reduced to a lightweight descriptor (its history being moved to the {@link NetfluxHistoryStore}), unless
+     *         its {@link #getChannelPolicy(String) policy} says otherwise
+     */
+    long getChannelIdleTimeout();
+
+    /**
+     * @return the number of events that can be buffered for each event sink before events are dropped
+     */
+    int getEventBufferSize();
+
+    /**
+     * @return the maximum number of events delivered at once to an event sink
+     */
+    int getEventBatchSize();
+
+    /**
+     * @return what to do when the buffer of an event sink is full
+     */
+    NetfluxEventPipeline.OverflowPolicy getEventOverflowPolicy();
+
+    /**
+     * @return the number of recipients above which a broadcast is delivered by several threads
+     */
+    int getParallelFanOutThreshold();
+
+    /**
+     * @return the maximum number of additional threads used to deliver the broadcasts to big channels
+     */
+    int getFanOutThreads();
+
+    /**
+     * @return the number of milliseconds during which the JOIN and LEAVE of a channel are coalesced before being sent
+     *         to the clients supporting {@link NetfluxExtension#MEMBERS}, {@code 0} to send them right away
+     */
+    long getMembershipCoalescingWindow();
+
+    /**
+     * @return the maximum number of characters of a received frame, bigger frames are rejected without being parsed
+     */
+    int getMaxFrameSize();
+
+    /**
+     * @return the number of characters from which a relayed message is not parsed and is kept off-heap in the history
+     */
+    int getLargeFrameThreshold();
+
+    /**
+     * @return the maximum number of bytes of off-heap memory used to store the large history entries
+     */
+    long getOffHeapHistorySize();
+
+    /**
+     * @return {@code true} if the received frames are recorded in a traffic log that can be replayed
+     */
+    boolean isCaptureEnabled();
+
+    /**
+     * @return {@code true} if the content of the messages is replaced by placeholders in the traffic log
+     */
+    boolean isCaptureRedacted();
+
+    /**
+     * @return the number of bytes after which the traffic capture is stopped, {@code 0} for no limit
+     */
+    long getCaptureMaxSize();
+
+    /**
+     * The policy of the channels of a given type, configured with the {@code realtime.netflux.channel.<type>.*}
+     * properties, falling back on the {@code realtime.netflux.channel.default.*} properties: {@code history},
+     * {@code historyKeeper}, {@code maxHistoryEntries}, {@code maxHistoryBytes} and {@code idleTimeout}.
+     * 
+     * @param type the channel type (events, rtwiki, etc.), {@code null} for the channels created by the clients
+     * @return the policy of the channels of the given type
+     */
+    ChannelPolicy getChannelPolicy(String type);
+
+    /**
+     * @param wiki a wiki, {@code null} for the channels created by the clients
+     * @return the maximum number of channels of the wiki, {@code 0} for no limit, configured with
+     *         {@code realtime.netflux.wiki.<wiki>.maxChannels} or {@code realtime.netflux.wiki.default.maxChannels}
+     */
+    int getWikiMaxChannels(String wiki);
+
+    /**
+     * @param wiki a wiki, {@code null} for the channels created by the clients
+     * @return the size of the history the empty channels of the wiki can keep in memory, {@code 0} for no limit,
+     *         configured with {@code realtime.netflux.wiki.<wiki>.maxHistoryBytes} or
+     *         {@code realtime.netflux.wiki.default.maxHistoryBytes}
+     */
+    long getWikiMaxHistoryBytes(String wiki);
+}
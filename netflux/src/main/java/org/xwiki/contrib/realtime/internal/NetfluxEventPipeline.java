@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.contrib.realtime.event.NetfluxEvent;
+
+/**
+ * Publishes the Netflux events to the {@link org.xwiki.contrib.realtime.event.NetfluxEventSink}s without blocking the
+ * caller.
+ * 
+ * @version $Id$
+ */
+@Role
+public interface NetfluxEventPipeline
+{
+    /**
+     * What to do when an event is published while the buffer of a sink is full.
+     */
+    enum OverflowPolicy
+    {
+        /**
+         * Drop the published event.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest buffered event to make room for the published event.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * @return {@code true} if there is at least one sink, in which case the events should be published
+     */
+    boolean isEnabled();
+
+    /**
+     * Publish an event. This method never blocks.
+     * 
+     * @param event the event to publish
+     */
+    void publish(NetfluxEvent event);
+
+    /**
+     * @return for each sink, the number of published, delivered, pending and dropped events along with the delivery
+     *         lag
+     */
+    List<Map<String, Object>> getStatistics();
+}
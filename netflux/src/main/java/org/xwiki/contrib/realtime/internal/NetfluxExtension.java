@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The optional Netflux protocol extensions. A client enables extensions by sending
+ * {@code [seq, "EXT", [extension, ...]]} after receiving the IDENT message, which lists the extensions supported by the
+ * server. The server replies with {@code [seq, "ACK", [enabled extension, ...]]}.
+ * 
+ * @version $Id$
+ */
+public enum NetfluxExtension
+{
+    /**
+     * When joining a channel, the client receives a single {@code [0, "", "MEMBERS", channel, [joined...], []]} frame
+     * instead of one JOIN frame per member, and the JOIN and LEAVE of the other members are coalesced in
+     * {@code [0, "", "MEMBERS", channel, [joined...], [left...]]} frames. These frames must be applied as set
+     * operations, joined members first.
+     */
+    MEMBERS,
+
+    /**
+     * The relayed messages whose content is a string, including the history, are sent as {@code length:header payload}
+     * frames where the header is the JSON array of the frame without its last element, and the payload is that last
+     * element as is, so that patches are not escaped in a JSON string. The client can send its MSG frames the same
+     * way. The other frames are still JSON arrays, see {@link RawFrame}.
+     */
+    RAW;
+
+    /**
+     * @return the bit representing this extension in a set of enabled extensions
+     */
+    public int mask()
+    {
+        return 1 << ordinal();
+    }
+
+    /**
+     * @param extensions a set of enabled extensions, as returned by {@link #parse(Collection)}
+     * @return {@code true} if this extension is in the given set
+     */
+    public boolean isEnabled(int extensions)
+    {
+        return (extensions & mask()) != 0;
+    }
+
+    /**
+     * @return the names of all the supported extensions
+     */
+    public static List<String> names()
+    {
+        List<String> names = new ArrayList<>();
+        for (NetfluxExtension extension : values()) {
+            names.add(extension.name());
+        }
+        return names;
+    }
+
+    /**
+     * @param names the names of the extensions requested by a client
+     * @return the set of supported extensions among the requested ones
+     */
+    public static int parse(Collection<?> names)
+    {
+        int extensions = 0;
+        for (NetfluxExtension extension : values()) {
+            if (names.contains(extension.name())) {
+                extensions |= extension.mask();
+            }
+        }
+        return extensions;
+    }
+}
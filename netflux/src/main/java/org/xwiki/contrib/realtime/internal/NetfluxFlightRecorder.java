@@ -0,0 +1,266 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+/**
+ * Starts the Flight Recorder events of the Netflux backend. The events are only created when the {@code jdk.jfr} API
+ * is available (it's missing from Java 8 before update 262 and from some vendor builds): the backend only uses the
+ * interfaces declared here, so that it doesn't depend on {@code jdk.jfr} classes, and gets no-op events otherwise.
+ * <p>
+ * The event classes are in the {@code src/main/jfr} source directory, which is only compiled with Java 11 or later
+ * (the {@code jfr} Maven profile): built with an older JDK, the module has no Flight Recorder events. The factory of
+ * the events is loaded by reflection so that this class compiles without them.
+ * 
+ * @version $Id$
+ */
+final class NetfluxFlightRecorder
+{
+    /**
+     * A JOIN, LEAVE, MSG or GET_HISTORY command, see {@code JfrCommandEvent}.
+     */
+    interface Command
+    {
+        /**
+         * End the event and record it if enabled.
+         * 
+         * @param command the command
+         * @param channel the channel key
+         * @param fanOut the number of users the resulting messages were sent to
+         * @param bytes the size of the relayed or replayed messages
+         */
+        void commit(String command, String channel, int fanOut, long bytes);
+    }
+
+    /**
+     * A checkpoint pruning the history of a channel, see {@code JfrCheckpointEvent}.
+     */
+    interface Checkpoint
+    {
+        /**
+         * End the event and record it if enabled.
+         * 
+         * @param channel the channel key
+         * @param prunedMessages the number of messages removed from the history
+         * @param keptMessages the number of messages kept in the history
+         * @param historyBytes the size of the history after pruning
+         */
+        void commit(String channel, int prunedMessages, int keptMessages, long historyBytes);
+    }
+
+    /**
+     * The disconnection of a user, see {@code JfrDisconnectEvent}.
+     */
+    interface Disconnect
+    {
+        /**
+         * End the event and record it if enabled.
+         * 
+         * @param user the user name
+         * @param channels the number of channels the user was in
+         */
+        void commit(String user, int channels);
+    }
+
+    /**
+     * A scan for the users that timed out, see {@code JfrTimeoutSweepEvent}.
+     */
+    interface TimeoutSweep
+    {
+        /**
+         * End the event and record it if enabled.
+         * 
+         * @param scannedUsers the number of scanned users
+         * @param disconnectedUsers the number of users that timed out
+         */
+        void commit(int scannedUsers, int disconnectedUsers);
+    }
+
+    /**
+     * A wait for the backend lock, see {@code JfrLockWaitEvent}.
+     */
+    interface LockWait
+    {
+        /**
+         * Called once the lock is acquired.
+         */
+        void acquired();
+    }
+
+    /**
+     * Creates the events.
+     */
+    interface Factory
+    {
+        /**
+         * @return a started command event
+         */
+        Command command();
+
+        /**
+         * @return a started checkpoint event
+         */
+        Checkpoint checkpoint();
+
+        /**
+         * @return a started disconnection event
+         */
+        Disconnect disconnect();
+
+        /**
+         * @return a started timeout sweep event
+         */
+        TimeoutSweep timeoutSweep();
+
+        /**
+         * @param operation the operation that needs the lock
+         * @return the started event
+         */
+        LockWait lockWait(String operation);
+    }
+
+    private static final String FACTORY_CLASS = "org.xwiki.contrib.realtime.internal.JfrEventFactory";
+
+    private static final Factory FACTORY = createFactory();
+
+    /**
+     * The events used when the Flight Recorder API is not available.
+     */
+    private static final class Disabled implements Factory, Command, Checkpoint, Disconnect, TimeoutSweep, LockWait
+    {
+        @Override
+        public Command command()
+        {
+            return this;
+        }
+
+        @Override
+        public Checkpoint checkpoint()
+        {
+            return this;
+        }
+
+        @Override
+        public Disconnect disconnect()
+        {
+            return this;
+        }
+
+        @Override
+        public TimeoutSweep timeoutSweep()
+        {
+            return this;
+        }
+
+        @Override
+        public LockWait lockWait(String operation)
+        {
+            return this;
+        }
+
+        @Override
+        public void commit(String command, String channel, int fanOut, long bytes)
+        {
+            // Nothing to record.
+        }
+
+        @Override
+        public void commit(String channel, int prunedMessages, int keptMessages, long historyBytes)
+        {
+            // Nothing to record.
+        }
+
+        @Override
+        public void commit(String user, int channels)
+        {
+            // Nothing to record.
+        }
+
+        @Override
+        public void commit(int scannedUsers, int disconnectedUsers)
+        {
+            // Nothing to record.
+        }
+
+        @Override
+        public void acquired()
+        {
+            // Nothing to record.
+        }
+    }
+
+    private NetfluxFlightRecorder()
+    {
+    }
+
+    /**
+     * @return a started command event
+     */
+    static Command command()
+    {
+        return FACTORY.command();
+    }
+
+    /**
+     * @return a started checkpoint event
+     */
+    static Checkpoint checkpoint()
+    {
+        return FACTORY.checkpoint();
+    }
+
+    /**
+     * @return a started disconnection event
+     */
+    static Disconnect disconnect()
+    {
+        return FACTORY.disconnect();
+    }
+
+    /**
+     * @return a started timeout sweep event
+     */
+    static TimeoutSweep timeoutSweep()
+    {
+        return FACTORY.timeoutSweep();
+    }
+
+    /**
+     * Start waiting for the backend lock.
+     * 
+     * @param operation the operation that needs the lock
+     * @return the started event, {@link LockWait#acquired()} must be called once the lock is acquired
+     */
+    static LockWait lockWait(String operation)
+    {
+        return FACTORY.lockWait(operation);
+    }
+
+    private static Factory createFactory()
+    {
+        ClassLoader classLoader = NetfluxFlightRecorder.class.getClassLoader();
+        try {
+            Class.forName("jdk.jfr.Event", false, classLoader);
+            return (Factory) Class.forName(FACTORY_CLASS, true, classLoader).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // No Flight Recorder API at runtime, or no events built.
+            return new Disabled();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Stores the history of the channels that are not currently loaded in memory.
+ * 
+ * @version $Id$
+ */
+@Role
+public interface NetfluxHistoryStore
+{
+    /**
+     * Load the stored history of a channel.
+     * 
+     * @param key the channel key
+     * @return the stored messages, in the order they were sent, or an empty list if nothing is stored for this channel
+     */
+    List<String> load(String key);
+
+    /**
+     * Store the history of a channel, replacing any previously stored history.
+     * 
+     * @param key the channel key
+     * @param messages the messages to store
+     */
+    void save(String key, List<String> messages);
+
+    /**
+     * Remove the stored history of a channel.
+     * 
+     * @param key the channel key
+     */
+    void remove(String key);
+}
@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.websocket.WebSocketHandler;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Remove the Netflux channels of the deleted wikis.
+ * 
+ * @version $Id$
+ */
+@Component
+@Named(NetfluxWikiDeletedListener.NAME)
+@Singleton
+public class NetfluxWikiDeletedListener extends AbstractEventListener
+{
+    /**
+     * The name of this listener.
+     */
+    public static final String NAME = "NetfluxWikiDeletedListener";
+
+    /**
+     * The backend is loaded lazily, when a wiki is deleted.
+     */
+    @Inject
+    @Named("realtimeNetflux")
+    private Provider<WebSocketHandler> backendProvider;
+
+    /**
+     * Default constructor.
+     */
+    public NetfluxWikiDeletedListener()
+    {
+        super(NAME, new WikiDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        ((NetfluxBackend) this.backendProvider.get()).unloadWiki(((WikiDeletedEvent) event).getWikiId());
+    }
+}
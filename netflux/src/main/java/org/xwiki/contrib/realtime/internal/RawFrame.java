@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The frames exchanged with the clients supporting {@link NetfluxExtension#RAW}: the last element of the frame, a
+ * string, is carried as is after the JSON array of the other elements, instead of being escaped in a JSON string:
+ * 
+ * <pre>
+ * headerLength:header payload
+ * </pre>
+ * 
+ * The length of the header is counted in UTF-16 code units, like the length of JavaScript strings. A raw frame starts
+ * with a digit while a JSON frame starts with {@code [}, so both can be received on the same connection.
+ * 
+ * @version $Id$
+ */
+final class RawFrame
+{
+    private static final char SEPARATOR = ':';
+
+    private RawFrame()
+    {
+    }
+
+    /**
+     * @param frame a received frame
+     * @return {@code true} if the frame is a raw frame, {@code false} if it's a JSON frame
+     */
+    static boolean isRaw(String frame)
+    {
+        return !frame.isEmpty() && frame.charAt(0) >= '0' && frame.charAt(0) <= '9';
+    }
+
+    /**
+     * @param header the JSON array of the frame elements, the last one excluded
+     * @param payload the last element of the frame
+     * @return the raw frame
+     */
+    static String format(String header, String payload)
+    {
+        String length = String.valueOf(header.length());
+        return new StringBuilder(length.length() + 1 + header.length() + payload.length()).append(length)
+            .append(SEPARATOR).append(header).append(payload).toString();
+    }
+
+    /**
+     * @param frame a raw frame
+     * @param mapper the mapper used to parse the header
+     * @return the frame elements, as if the frame was a JSON array
+     * @throws IOException if the frame is invalid
+     */
+    static ArrayList<Object> parse(String frame, ObjectMapper mapper) throws IOException
+    {
+        int headerEnd = getPayloadStart(frame);
+        if (headerEnd < 0) {
+            throw new IOException("Invalid raw frame header.");
+        }
+        int separator = frame.indexOf(SEPARATOR);
+        ArrayList<Object> elements = mapper.readValue(frame.substring(separator + 1, headerEnd),
+            mapper.getTypeFactory().constructCollectionType(ArrayList.class, Object.class));
+        elements.add(frame.substring(headerEnd));
+        return elements;
+    }
+
+    /**
+     * @param frame a raw frame
+     * @return the position of the payload in the frame, i.e. the end of the header, or {@code -1} if the length of the
+     *         header is invalid
+     */
+    static int getPayloadStart(String frame)
+    {
+        int separator = frame.indexOf(SEPARATOR);
+        int headerEnd = -1;
+        if (separator > 0) {
+            try {
+                headerEnd = separator + 1 + Integer.parseInt(frame.substring(0, separator));
+            } catch (NumberFormatException e) {
+                headerEnd = -1;
+            }
+        }
+        return (headerEnd <= separator || headerEnd > frame.length()) ? -1 : headerEnd;
+    }
+}
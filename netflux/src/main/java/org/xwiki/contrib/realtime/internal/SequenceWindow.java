@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+/**
+ * Remembers the sequence numbers of the last messages sent by a client to a given channel or user, in order to detect
+ * the messages that are sent again by the client (after a timeout or a reconnection for instance). Only the highest
+ * sequence number and a bitmap of the {@value #SIZE} previous ones are kept: the sequence numbers older than this
+ * window can't be checked, see {@link #isTooOld(int)}.
+ * 
+ * @version $Id$
+ */
+class SequenceWindow
+{
+    private static final int SIZE = Long.SIZE;
+
+    private int highest;
+
+    /**
+     * Bit {@code i} is set if the sequence number {@code highest - i} was accepted. The highest sequence number is
+     * always accepted, so this is {@code 0} only until the first sequence number is recorded.
+     */
+    private long accepted;
+
+    /**
+     * @param seq the sequence number of a received message
+     * @return {@code true} if the sequence number is older than the window, so that it's not known whether the message
+     *         is a duplicate
+     */
+    boolean isTooOld(int seq)
+    {
+        // The subtraction overflows when the sequence numbers wrap around, which keeps the distance right.
+        int offset = highest - seq;
+        return accepted != 0 && offset >= SIZE;
+    }
+
+    /**
+     * Record a sequence number.
+     * 
+     * @param seq the sequence number of a received message
+     * @return {@code true} if the sequence number was not seen before, {@code false} if the message is a duplicate or
+     *         if the sequence number is {@link #isTooOld(int) too old} to be checked
+     */
+    boolean accept(int seq)
+    {
+        int offset = highest - seq;
+        if (accepted == 0 || offset < 0) {
+            // A new highest sequence number (or the first one): slide the window.
+            long shift = -(long) offset;
+            accepted = (accepted == 0 || shift >= SIZE) ? 1 : (accepted << shift) | 1;
+            highest = seq;
+            return true;
+        }
+        if (offset >= SIZE) {
+            return false;
+        }
+        long bit = 1L << offset;
+        if ((accepted & bit) != 0) {
+            return false;
+        }
+        accepted |= bit;
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+
+/**
+ * Serves the history of the channels restored from a {@link ChannelSnapshot} until they are joined, and delegates to
+ * the default history store for the other channels.
+ * 
+ * @version $Id$
+ */
+public class SnapshotHistoryStore implements NetfluxHistoryStore
+{
+    private final NetfluxHistoryStore store;
+
+    private final ChannelSnapshot snapshot;
+
+    private final Logger logger;
+
+    private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+
+    /**
+     * Whether all the entries of the snapshot index were registered.
+     */
+    private volatile boolean complete;
+
+    /**
+     * @param store the history store used for the channels that are not in the snapshot
+     * @param snapshot the restored snapshot
+     * @param logger the logger used to report snapshot read failures
+     */
+    public SnapshotHistoryStore(NetfluxHistoryStore store, ChannelSnapshot snapshot, Logger logger)
+    {
+        this.store = store;
+        this.snapshot = snapshot;
+        this.logger = logger;
+    }
+
+    /**
+     * Register a channel whose history is in the snapshot.
+     * 
+     * @param entry the snapshot entry
+     */
+    public void addEntry(ChannelSnapshot.Entry entry)
+    {
+        this.offsets.put(entry.key, entry.offset);
+    }
+
+    /**
+     * Indicate that all the entries of the snapshot index were registered: the snapshot file is deleted as soon as the
+     * history of all the restored channels is loaded or removed.
+     */
+    public void setComplete()
+    {
+        this.complete = true;
+        deleteIfConsumed();
+    }
+
+    @Override
+    public List<String> load(String key)
+    {
+        Long offset = this.offsets.get(key);
+        if (offset == null) {
+            return this.store.load(key);
+        }
+        try {
+            return this.snapshot.readHistory(offset);
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the history of channel [{}] from the snapshot.", key, e);
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void save(String key, List<String> messages)
+    {
+        this.offsets.remove(key);
+        this.store.save(key, messages);
+        deleteIfConsumed();
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        this.offsets.remove(key);
+        this.store.remove(key);
+        deleteIfConsumed();
+    }
+
+    private void deleteIfConsumed()
+    {
+        if (this.complete && this.offsets.isEmpty()) {
+            try {
+                this.snapshot.delete();
+            } catch (IOException e) {
+                this.logger.warn("Failed to delete the restored Netflux snapshot: [{}]", e.getMessage());
+            }
+        }
+    }
+}
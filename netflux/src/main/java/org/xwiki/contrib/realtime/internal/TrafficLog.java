@@ -0,0 +1,525 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Binary log of the frames received by the Netflux backend, used to replay production traffic. The file starts with a
+ * header followed by one record per connection, frame and disconnection, in the order they were received:
+ * 
+ * <pre>
+ * header: MAGIC:int startTime:long
+ * record: type:byte nanos:long connection:int (length:int utf8Bytes)?
+ * </pre>
+ * 
+ * The time of a record is the number of nanoseconds elapsed since the start of the capture and only the frames have
+ * a length and content.
+ * 
+ * @version $Id$
+ */
+public final class TrafficLog
+{
+    /**
+     * A new connection.
+     */
+    public static final byte CONNECT = 1;
+
+    /**
+     * A frame received from a connection.
+     */
+    public static final byte MESSAGE = 2;
+
+    /**
+     * A connection was closed.
+     */
+    public static final byte DISCONNECT = 3;
+
+    private static final int MAGIC = 0x4e464331;
+
+    private static final String CMD_MSG = "MSG";
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final String CHECKPOINT_MARKER = "\"cp|[4,[";
+
+    /**
+     * The checkpoint marker of a decoded payload, or of a payload carried as is by a {@link RawFrame}, i.e. without the
+     * opening quote.
+     */
+    private static final String RAW_CHECKPOINT_MARKER = CHECKPOINT_MARKER.substring(1);
+
+    private static final char PLACEHOLDER = 'x';
+
+    private static final int RECORD_HEADER_SIZE = Byte.BYTES + Long.BYTES + Integer.BYTES;
+
+    private TrafficLog()
+    {
+    }
+
+    /**
+     * A record read from a traffic log.
+     */
+    public static class Record
+    {
+        /**
+         * The record type, {@link #CONNECT}, {@link #MESSAGE} or {@link #DISCONNECT}.
+         */
+        public final byte type;
+
+        /**
+         * The number of nanoseconds elapsed between the start of the capture and this record.
+         */
+        public final long time;
+
+        /**
+         * The identifier of the connection, unique in the log.
+         */
+        public final int connection;
+
+        /**
+         * The received frame, {@code null} if this record is not a {@link #MESSAGE}.
+         */
+        public final String frame;
+
+        Record(byte type, long time, int connection, String frame)
+        {
+            this.type = type;
+            this.time = time;
+            this.connection = connection;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Writes a traffic log. The records are handed to a dedicated thread through a bounded queue, so that the threads
+     * receiving the frames don't wait for each other nor for the disk: the records are dropped when the queue is full.
+     * The capture is stopped on the first write error or once the log reaches its maximum size.
+     */
+    public static class Writer
+    {
+        private static final int QUEUE_CAPACITY = 8192;
+
+        private static final long FLUSH_MILLISECONDS = 1000;
+
+        /**
+         * Put in the queue by {@link #close()}: the records queued before it are written, then the thread stops.
+         */
+        private static final Record END = new Record((byte) 0, 0, 0, null);
+
+        private final File file;
+
+        private final boolean redact;
+
+        private final String historyKeeper;
+
+        private final long maxSize;
+
+        /**
+         * The number of bytes written to the log.
+         */
+        private long size;
+
+        private final Logger logger;
+
+        private final long start = System.nanoTime();
+
+        private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        private final AtomicInteger lastConnection = new AtomicInteger();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private final Thread thread;
+
+        /**
+         * Whether the records are ignored: the capture is closed or stopped.
+         */
+        private volatile boolean stopped;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private DataOutputStream out;
+
+        /**
+         * @param file the file where to write the log
+         * @param redact {@code true} to replace the content of the relayed messages by placeholders of the same size
+         * @param maxSize the number of bytes after which the capture is stopped, {@code 0} for no limit
+         * @param historyKeeper the name of the history keeper, whose requests are not redacted
+         * @param logger the logger used to report the write errors
+         * @throws IOException if the file can't be created
+         */
+        public Writer(File file, boolean redact, long maxSize, String historyKeeper, Logger logger) throws IOException
+        {
+            this.file = file;
+            this.redact = redact;
+            this.maxSize = maxSize;
+            this.historyKeeper = historyKeeper;
+            this.logger = logger;
+            file.getParentFile().mkdirs();
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            this.out.writeInt(MAGIC);
+            this.out.writeLong(System.currentTimeMillis());
+            this.size = Integer.BYTES + Long.BYTES;
+            this.thread = new Thread(this::run, "Netflux traffic capture");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        /**
+         * Record a new connection.
+         * 
+         * @return the identifier of the connection
+         */
+        public int connect()
+        {
+            int connection = this.lastConnection.incrementAndGet();
+            add(CONNECT, connection, null);
+            return connection;
+        }
+
+        /**
+         * Record a received frame.
+         * 
+         * @param connection the connection identifier
+         * @param frame the received frame
+         */
+        public void message(int connection, String frame)
+        {
+            add(MESSAGE, connection, frame);
+        }
+
+        /**
+         * Record the end of a connection.
+         * 
+         * @param connection the connection identifier
+         */
+        public void disconnect(int connection)
+        {
+            add(DISCONNECT, connection, null);
+        }
+
+        /**
+         * Stop the capture, once the records received so far are written.
+         */
+        public void close()
+        {
+            if (!this.closed.compareAndSet(false, true)) {
+                return;
+            }
+            this.stopped = true;
+            try {
+                this.queue.put(END);
+                this.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void add(byte type, int connection, String frame)
+        {
+            if (!this.stopped && !this.queue.offer(new Record(type, System.nanoTime() - this.start, connection, frame))
+                && this.dropped.getAndIncrement() == 0) {
+                this.logger.warn("The Netflux traffic capture [{}] can't keep up, records are dropped.", this.file);
+            }
+        }
+
+        private void run()
+        {
+            long lastFlush = System.currentTimeMillis();
+            try {
+                for (Record record = take(); record != END; record = take()) {
+                    if (record != null) {
+                        write(record);
+                    }
+                    if (record == null || System.currentTimeMillis() - lastFlush >= FLUSH_MILLISECONDS) {
+                        flush();
+                        lastFlush = System.currentTimeMillis();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeFile();
+                if (this.dropped.get() > 0) {
+                    this.logger.warn("[{}] records were dropped from the Netflux traffic capture [{}].",
+                        this.dropped.get(), this.file);
+                }
+            }
+        }
+
+        /**
+         * @return the next record, {@code null} if none is received in time to flush
+         */
+        private Record take() throws InterruptedException
+        {
+            return this.queue.poll(FLUSH_MILLISECONDS, TimeUnit.MILLISECONDS);
+        }
+
+        private void write(Record record)
+        {
+            if (this.out == null) {
+                return;
+            }
+            String frame = record.frame;
+            if (frame != null && this.redact) {
+                frame = redact(frame, this.historyKeeper);
+                if (frame == null) {
+                    // The content of an invalid frame can't be told apart from the rest: it's not recorded at all.
+                    return;
+                }
+            }
+            try {
+                this.out.writeByte(record.type);
+                this.out.writeLong(record.time);
+                this.out.writeInt(record.connection);
+                this.size += RECORD_HEADER_SIZE;
+                if (frame != null) {
+                    byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+                    this.out.writeInt(bytes.length);
+                    this.out.write(bytes);
+                    this.size += Integer.BYTES + bytes.length;
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if (this.maxSize > 0 && this.size >= this.maxSize) {
+                this.logger.info("The Netflux traffic capture [{}] reached its maximum size, the capture is stopped.",
+                    this.file);
+                this.stopped = true;
+                closeFile();
+            }
+        }
+
+        private void flush()
+        {
+            if (this.out != null) {
+                try {
+                    this.out.flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void closeFile()
+        {
+            if (this.out != null) {
+                try {
+                    this.out.close();
+                } catch (IOException e) {
+                    this.logger.warn("Failed to close the Netflux traffic capture [{}].", this.file, e);
+                }
+                this.out = null;
+            }
+        }
+
+        private void fail(IOException e)
+        {
+            this.logger.warn("Failed to write the Netflux traffic capture [{}], the capture is stopped.", this.file, e);
+            this.stopped = true;
+            closeFile();
+        }
+    }
+
+    /**
+     * Replace the payload of a MSG frame by a string of the same length, keeping the checkpoint marker so that the
+     * replayed history behaves like the captured one. The requests sent to the history keeper, which only hold the key
+     * of a channel, are kept as is.
+     * 
+     * @param frame a received frame, JSON or {@link RawFrame raw}
+     * @param historyKeeper the name of the history keeper
+     * @return the redacted frame, or {@code null} if the frame is invalid: it's not known what it holds
+     */
+    static String redact(String frame, String historyKeeper)
+    {
+        try {
+            return RawFrame.isRaw(frame) ? redactRaw(frame, historyKeeper) : redactJson(frame, historyKeeper);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String redactJson(String frame, String historyKeeper) throws IOException
+    {
+        try (JsonParser parser = JSON.createParser(frame)) {
+            if (!isRedactedMessage(parser, historyKeeper) || nextElement(parser) == JsonToken.END_ARRAY) {
+                checkEnd(parser);
+                return frame;
+            }
+            int payloadStart = (int) parser.getTokenLocation().getCharOffset();
+            boolean checkpoint =
+                parser.currentToken() == JsonToken.VALUE_STRING && parser.getText().startsWith(RAW_CHECKPOINT_MARKER);
+            // The elements following the payload, if any, are redacted with it.
+            while (nextElement(parser) != JsonToken.END_ARRAY) {
+                continue;
+            }
+            int payloadEnd = (int) parser.getTokenLocation().getCharOffset();
+            checkEnd(parser);
+            StringBuilder redacted = new StringBuilder(frame.length()).append(frame, 0, payloadStart);
+            redacted.append(checkpoint ? CHECKPOINT_MARKER : "\"");
+            while (redacted.length() < payloadEnd - 1) {
+                redacted.append(PLACEHOLDER);
+            }
+            return redacted.append('"').append(frame, payloadEnd, frame.length()).toString();
+        }
+    }
+
+    /**
+     * Replace the payload of a raw MSG frame, which follows the header as is, by placeholders. The header, and thus the
+     * length it starts with, is kept.
+     */
+    private static String redactRaw(String frame, String historyKeeper) throws IOException
+    {
+        int payloadStart = RawFrame.getPayloadStart(frame);
+        if (payloadStart < 0) {
+            throw new IOException("Invalid raw frame header.");
+        }
+        try (JsonParser parser = JSON.createParser(frame.substring(frame.indexOf(':') + 1, payloadStart))) {
+            boolean redacted = isRedactedMessage(parser, historyKeeper);
+            // The payload of a raw MSG is the last element: the header ends with the recipient.
+            if (redacted && nextElement(parser) != JsonToken.END_ARRAY) {
+                throw new IOException("Unexpected raw MSG header.");
+            }
+            checkEnd(parser);
+            if (!redacted) {
+                return frame;
+            }
+        }
+        int filled = payloadStart;
+        if (frame.startsWith(RAW_CHECKPOINT_MARKER, payloadStart)) {
+            filled += RAW_CHECKPOINT_MARKER.length();
+        }
+        char[] placeholder = new char[frame.length() - filled];
+        Arrays.fill(placeholder, PLACEHOLDER);
+        return new StringBuilder(frame.length()).append(frame, 0, filled).append(placeholder).toString();
+    }
+
+    /**
+     * Read the start of a frame, up to the recipient of a MSG.
+     * 
+     * @return {@code true} if the frame is a MSG whose payload must be redacted, the parser being on its recipient
+     */
+    private static boolean isRedactedMessage(JsonParser parser, String historyKeeper) throws IOException
+    {
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Not a Netflux frame.");
+        }
+        // The sequence number, then the command.
+        if (parser.nextToken() == JsonToken.END_ARRAY || nextElement(parser) != JsonToken.VALUE_STRING
+            || !CMD_MSG.equals(parser.getText())) {
+            return false;
+        }
+        JsonToken recipient = parser.nextToken();
+        return recipient != JsonToken.END_ARRAY
+            && !(recipient == JsonToken.VALUE_STRING && parser.getText().equals(historyKeeper));
+    }
+
+    /**
+     * @return the first token of the next element of the array, {@link JsonToken#END_ARRAY} at the end of the array
+     */
+    private static JsonToken nextElement(JsonParser parser) throws IOException
+    {
+        parser.skipChildren();
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            throw new IOException("Unterminated frame.");
+        }
+        return token;
+    }
+
+    /**
+     * Parse the rest of the frame, which must be a single JSON array, so that invalid frames are not recorded.
+     */
+    private static void checkEnd(JsonParser parser) throws IOException
+    {
+        while (!parser.getParsingContext().inRoot()) {
+            if (parser.nextToken() == null) {
+                throw new IOException("Unterminated frame.");
+            }
+        }
+        if (parser.nextToken() != null) {
+            throw new IOException("Unexpected content after the frame.");
+        }
+    }
+
+    /**
+     * Read a traffic log.
+     * 
+     * @param file the log file
+     * @param consumer called for each record, in order
+     * @return the time at which the capture started, in milliseconds since the epoch
+     * @throws IOException if the file can't be read or is not a traffic log
+     */
+    public static long read(File file, Consumer<Record> consumer) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(String.format("[%s] is not a Netflux traffic log.", file));
+            }
+            long startTime = in.readLong();
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                try {
+                    long time = in.readLong();
+                    int connection = in.readInt();
+                    String frame = null;
+                    if (type == MESSAGE) {
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        frame = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    consumer.accept(new Record((byte) type, time, connection, frame));
+                } catch (EOFException e) {
+                    // The last record is truncated when the capture was not closed.
+                    break;
+                }
+            }
+            return startTime;
+        }
+    }
+}
@@ -20,8 +20,8 @@
 package org.xwiki.contrib.realtime.script;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import javax.inject.Inject;
@@ -30,6 +30,7 @@ import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.realtime.internal.NetfluxBackend;
+import org.xwiki.contrib.realtime.internal.NetfluxBackend.Channel;
 import org.xwiki.contrib.websocket.WebSocketHandler;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.script.service.ScriptService;
@@ -71,25 +72,93 @@ public class NetfluxBackendScriptService implements ScriptService
             return keyResult;
         }
         NetfluxBackend nfBackend = (NetfluxBackend) backend;
+        String wiki = docRef.getWikiReference().getName();
 
         // Clean empty channels.
-        nfBackend.channels.cleanEmpty();
+        nfBackend.cleanChannels(wiki);
 
         // Find all existing editor types.
-        List<String> channelDocId = Arrays.asList(docRef.toString(), modifier);
-        String docIdString = channelDocId.toString();
-        keyResult = nfBackend.channels.getKeysFromDocName(docIdString);
+        String docIdString = getChannelName(docRef, modifier);
+        keyResult = nfBackend.getChannels(wiki).getKeysFromDocName(docIdString);
 
-        // Check if the "editor" channel doesn't already exist.
+        // Check if the "editor" channel doesn't already exist. It may have been created by a concurrent request since,
+        // in which case the existing channel is returned.
         if (editor != null && editor.trim().length() > 0 && !keyResult.containsKey(editor)) {
-            String key = nfBackend.createChannel(docIdString, editor).key;
+            Channel chan = nfBackend.createChannel(wiki, docIdString, editor);
+            if (chan == null) {
+                keyResult.put("error", "ENOSPC");
+                return keyResult;
+            }
             Map<String, Object> chanMap = new HashMap<>();
-            chanMap.put("key", key);
-            chanMap.put("users", 0);
+            chanMap.put("key", chan.key);
+            chanMap.put("users", chan.getUserCount());
             keyResult.put(editor, chanMap);
         }
 
         result.put("keys", keyResult);
         return result;
     }
+
+    /**
+     * Get the number of users connected to the realtime channels of a document. Unlike
+     * {@link #getChannelKey(DocumentReference, String, String)}, this doesn't create any channel.
+     * 
+     * @param docRef the DocumentReference of the page
+     * @param modifier the unique modifier/language ("default", "en", "fr", etc.)
+     * @return the number of connected users for each editor type ("rtwiki", "rtwysiwyg", "events", etc.), or an empty
+     *         map if the current user is not allowed to view the document
+     */
+    public Map<String, Integer> getPresence(DocumentReference docRef, String modifier)
+    {
+        if (!this.authorization.hasAccess(Right.VIEW, docRef)) {
+            return Collections.emptyMap();
+        }
+        return ((NetfluxBackend) backend).getChannels(docRef.getWikiReference().getName())
+            .getPresence(getChannelName(docRef, modifier));
+    }
+
+    /**
+     * Get diagnostics about the live channels and connections. Requires programming rights.
+     * 
+     * @param limit the maximum number of channels or users listed in each category
+     * @return the channels with the biggest history, the most users and the highest message rate, and the users with
+     *         the most pending messages and the oldest last message, or {@code null} if the current user doesn't have
+     *         programming rights
+     */
+    public Map<String, Object> getDiagnostics(int limit)
+    {
+        if (!this.authorization.hasAccess(Right.PROGRAM)) {
+            return null;
+        }
+        return ((NetfluxBackend) backend).getDiagnostics(limit);
+    }
+
+    /**
+     * Force the disconnection of a user. Requires programming rights.
+     * 
+     * @param userName the Netflux user name (as listed by {@link #getDiagnostics(int)})
+     * @return {@code true} if the user was disconnected, {@code false} if the user is not connected or if the current
+     *         user doesn't have programming rights
+     */
+    public boolean disconnect(String userName)
+    {
+        return this.authorization.hasAccess(Right.PROGRAM) && ((NetfluxBackend) backend).disconnectUser(userName);
+    }
+
+    /**
+     * Drop the history of a channel. Requires programming rights.
+     * 
+     * @param key the channel key
+     * @return {@code true} if the history was dropped, {@code false} if the channel doesn't exist or if the current
+     *         user doesn't have programming rights
+     */
+    public boolean dropHistory(String key)
+    {
+        return this.authorization.hasAccess(Right.PROGRAM) && ((NetfluxBackend) backend).dropHistory(key);
+    }
+
+    private String getChannelName(DocumentReference docRef, String modifier)
+    {
+        return Arrays.asList(docRef.toString(), modifier).toString();
+    }
 }
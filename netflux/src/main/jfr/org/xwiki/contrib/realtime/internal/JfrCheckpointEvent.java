@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event emitted when a checkpoint prunes the history of a Netflux channel.
+ * 
+ * @version $Id$
+ */
+@Name("org.xwiki.contrib.realtime.Checkpoint")
+@Label("Netflux Checkpoint")
+@Category({ "XWiki", "Netflux" })
+@Description("A checkpoint pruning the history of a Netflux channel.")
+class JfrCheckpointEvent extends Event implements NetfluxFlightRecorder.Checkpoint
+{
+    @Label("Channel")
+    String channel;
+
+    @Label("Pruned Messages")
+    int prunedMessages;
+
+    @Label("Kept Messages")
+    int keptMessages;
+
+    @Label("History Size")
+    @Description("The size of the history after pruning")
+    @DataAmount
+    long historyBytes;
+
+    @Override
+    public void commit(String channelKey, int pruned, int kept, long size)
+    {
+        if (shouldCommit()) {
+            this.channel = channelKey;
+            this.prunedMessages = pruned;
+            this.keptMessages = kept;
+            this.historyBytes = size;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event emitted when the Netflux backend handles a JOIN, LEAVE, MSG or GET_HISTORY command.
+ * 
+ * @version $Id$
+ */
+@Name("org.xwiki.contrib.realtime.Command")
+@Label("Netflux Command")
+@Category({ "XWiki", "Netflux" })
+@Description("A JOIN, LEAVE, MSG or GET_HISTORY command handled by the Netflux backend.")
+class JfrCommandEvent extends Event implements NetfluxFlightRecorder.Command
+{
+    @Label("Command")
+    String command;
+
+    @Label("Channel")
+    String channel;
+
+    @Label("Fan-out")
+    @Description("The number of users the resulting messages were sent to")
+    int fanOut;
+
+    @Label("Size")
+    @Description("The size of the relayed or replayed messages")
+    @DataAmount
+    long bytes;
+
+    @Override
+    public void commit(String commandName, String channelKey, int recipients, long size)
+    {
+        if (shouldCommit()) {
+            this.command = commandName;
+            this.channel = channelKey;
+            this.fanOut = recipients;
+            this.bytes = size;
+            commit();
+        }
+    }
+}
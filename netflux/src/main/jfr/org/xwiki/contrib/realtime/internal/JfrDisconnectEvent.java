@@ -0,0 +1,55 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event emitted when a Netflux user is disconnected.
+ * 
+ * @version $Id$
+ */
+@Name("org.xwiki.contrib.realtime.Disconnect")
+@Label("Netflux Disconnect")
+@Category({ "XWiki", "Netflux" })
+@Description("The disconnection of a Netflux user.")
+class JfrDisconnectEvent extends Event implements NetfluxFlightRecorder.Disconnect
+{
+    @Label("User")
+    String user;
+
+    @Label("Channels")
+    @Description("The number of channels the user was in")
+    int channels;
+
+    @Override
+    public void commit(String userName, int channelCount)
+    {
+        if (shouldCommit()) {
+            this.user = userName;
+            this.channels = channelCount;
+            commit();
+        }
+    }
+}
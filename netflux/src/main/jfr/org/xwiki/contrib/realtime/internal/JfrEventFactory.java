@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+/**
+ * Creates the Flight Recorder events of the Netflux backend. Loaded by {@link NetfluxFlightRecorder} only when the
+ * {@code jdk.jfr} API is available.
+ * 
+ * @version $Id$
+ */
+final class JfrEventFactory implements NetfluxFlightRecorder.Factory
+{
+    @Override
+    public NetfluxFlightRecorder.Command command()
+    {
+        JfrCommandEvent event = new JfrCommandEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public NetfluxFlightRecorder.Checkpoint checkpoint()
+    {
+        JfrCheckpointEvent event = new JfrCheckpointEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public NetfluxFlightRecorder.Disconnect disconnect()
+    {
+        JfrDisconnectEvent event = new JfrDisconnectEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public NetfluxFlightRecorder.TimeoutSweep timeoutSweep()
+    {
+        JfrTimeoutSweepEvent event = new JfrTimeoutSweepEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public NetfluxFlightRecorder.LockWait lockWait(String operation)
+    {
+        return JfrLockWaitEvent.start(operation);
+    }
+}
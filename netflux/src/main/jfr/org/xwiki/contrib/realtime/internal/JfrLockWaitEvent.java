@@ -0,0 +1,64 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event emitted when a thread waits for the Netflux backend lock.
+ * 
+ * @version $Id$
+ */
+@Name("org.xwiki.contrib.realtime.LockWait")
+@Label("Netflux Lock Wait")
+@Category({ "XWiki", "Netflux" })
+@Description("Time spent waiting for the Netflux backend lock.")
+class JfrLockWaitEvent extends Event implements NetfluxFlightRecorder.LockWait
+{
+    @Label("Operation")
+    String operation;
+
+    /**
+     * Start waiting for the lock.
+     * 
+     * @param operation the operation that needs the lock
+     * @return the event, {@link #acquired()} must be called once the lock is acquired
+     */
+    static JfrLockWaitEvent start(String operation)
+    {
+        JfrLockWaitEvent event = new JfrLockWaitEvent();
+        event.operation = operation;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void acquired()
+    {
+        end();
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+}
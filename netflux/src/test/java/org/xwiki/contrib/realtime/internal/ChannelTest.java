@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.realtime.internal.NetfluxBackend.Channel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for the history of {@link Channel}.
+ * 
+ * @version $Id$
+ */
+class ChannelTest
+{
+    private static final int MAX_HISTORY_ENTRIES = 3;
+
+    private final DirectBufferPool pool = new DirectBufferPool(1024, 1024 * 1024);
+
+    private final NetfluxHistoryStore store = new NetfluxHistoryStore()
+    {
+        @Override
+        public List<String> load(String key)
+        {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void save(String key, List<String> messages)
+        {
+        }
+
+        @Override
+        public void remove(String key)
+        {
+        }
+    };
+
+    private Channel channel;
+
+    private final List<String> sent = new ArrayList<>();
+
+    @BeforeEach
+    void setUp()
+    {
+        this.channel =
+            new Channel("key", "wiki", "name", "type", new ChannelPolicy(true, true, MAX_HISTORY_ENTRIES, 0, 0));
+        this.channel.hydrate("keeper", this.store, this.pool);
+    }
+
+    @Test
+    void trimUpToLastCheckpoint()
+    {
+        add("a", false);
+        add("cp1", true);
+        add("b", false);
+        assertEquals(0, this.channel.trimHistory(this.pool));
+
+        add("c", false);
+        assertEquals(1, this.channel.trimHistory(this.pool));
+        assertEquals(this.sent.subList(1, 4), this.channel.getHistory());
+
+        add("cp2", true);
+        add("d", false);
+        // The first checkpoint can be removed now that there's a newer one.
+        assertEquals(2, this.channel.trimHistory(this.pool));
+        assertEquals(this.sent.subList(3, 6), this.channel.getHistory());
+    }
+
+    @Test
+    void keepLastCheckpoint()
+    {
+        add("cp", true);
+        for (int i = 0; i < 5; i++) {
+            add("m" + i, false);
+        }
+
+        // The history exceeds the limit but the clients need its only checkpoint.
+        assertEquals(0, this.channel.trimHistory(this.pool));
+        assertEquals(this.sent, this.channel.getHistory());
+    }
+
+    @Test
+    void keepHistoryWithoutCheckpoint()
+    {
+        for (int i = 0; i < 5; i++) {
+            add("m" + i, false);
+        }
+
+        // The clients rebuild the content from the first message.
+        assertEquals(-1, this.channel.trimHistory(this.pool));
+        assertEquals(this.sent, this.channel.getHistory());
+    }
+
+    @Test
+    void pruneBeforeCheckpoint()
+    {
+        add("a", false);
+        add("cp1", true);
+        add("b", false);
+
+        assertEquals(1, this.channel.pruneHistory(this.pool));
+        assertEquals(this.sent.subList(1, 3), this.channel.getHistory());
+    }
+
+    private void add(String content, boolean checkpoint)
+    {
+        String msgStr = "[0,\"user\",\"MSG\",\"key\",\"" + (checkpoint ? "cp|[4,[" : "") + content + "\"]";
+        this.sent.add(msgStr);
+        this.channel.addToHistory(msgStr, checkpoint, this.pool);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link CompactSet}.
+ * 
+ * @version $Id$
+ */
+class CompactSetTest
+{
+    private final CompactSet<String> set = new CompactSet<>();
+
+    @Test
+    void addAndRemove()
+    {
+        assertTrue(this.set.isEmpty());
+        assertTrue(this.set.add("a"));
+        assertTrue(this.set.add("b"));
+        assertTrue(this.set.add("c"));
+        assertFalse(this.set.add("b"));
+        assertEquals(3, this.set.size());
+        assertTrue(this.set.contains("c"));
+
+        assertTrue(this.set.remove("b"));
+        assertFalse(this.set.remove("b"));
+        assertFalse(this.set.contains("b"));
+        assertEquals(Arrays.asList("a", "c"), new ArrayList<>(this.set));
+
+        assertTrue(this.set.remove("a"));
+        assertTrue(this.set.remove("c"));
+        assertTrue(this.set.isEmpty());
+        assertTrue(this.set.add("d"));
+        assertEquals(Arrays.asList("d"), new ArrayList<>(this.set));
+    }
+
+    @Test
+    void nullElement()
+    {
+        assertTrue(this.set.add(null));
+        assertTrue(this.set.contains(null));
+        assertTrue(this.set.remove(null));
+        assertTrue(this.set.isEmpty());
+    }
+
+    @Test
+    void removeWhileIterating()
+    {
+        this.set.addAll(Arrays.asList("a", "b", "c", "d"));
+        List<String> seen = new ArrayList<>();
+        for (Iterator<String> it = this.set.iterator(); it.hasNext();) {
+            String element = it.next();
+            seen.add(element);
+            if ("b".equals(element) || "c".equals(element)) {
+                it.remove();
+            }
+        }
+        assertEquals(Arrays.asList("a", "b", "c", "d"), seen);
+        assertEquals(Arrays.asList("a", "d"), new ArrayList<>(this.set));
+    }
+
+    @Test
+    void failFastIterator()
+    {
+        this.set.addAll(Arrays.asList("a", "b"));
+        Iterator<String> it = this.set.iterator();
+        it.next();
+        this.set.add("c");
+        assertThrows(ConcurrentModificationException.class, it::next);
+
+        Iterator<String> removing = this.set.iterator();
+        assertThrows(IllegalStateException.class, removing::remove);
+    }
+
+    @Test
+    void equalsOtherSets()
+    {
+        this.set.addAll(Arrays.asList("a", "b"));
+        assertEquals(new HashSet<>(Arrays.asList("b", "a")), this.set);
+    }
+}
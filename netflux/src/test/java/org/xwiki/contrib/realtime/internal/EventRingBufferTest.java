@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link EventRingBuffer}.
+ * 
+ * @version $Id$
+ */
+class EventRingBufferTest
+{
+    @Test
+    void capacityIsRoundedUp()
+    {
+        assertEquals(2, new EventRingBuffer<String>(0).capacity());
+        assertEquals(2, new EventRingBuffer<String>(2).capacity());
+        assertEquals(8, new EventRingBuffer<String>(5).capacity());
+        assertEquals(8, new EventRingBuffer<String>(8).capacity());
+    }
+
+    @Test
+    void offerAndPollInOrderAcrossLaps()
+    {
+        EventRingBuffer<Integer> buffer = new EventRingBuffer<>(4);
+        assertNull(buffer.poll());
+        int next = 0;
+        for (int lap = 0; lap < 10; lap++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(buffer.offer(lap * 3 + i));
+            }
+            assertEquals(3, buffer.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(next++, buffer.poll().intValue());
+            }
+            assertNull(buffer.poll());
+        }
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    void offerFailsWhenFull()
+    {
+        EventRingBuffer<String> buffer = new EventRingBuffer<>(2);
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+        assertFalse(buffer.offer("c"));
+        assertEquals("a", buffer.poll());
+        assertTrue(buffer.offer("c"));
+        assertEquals(2, buffer.size());
+    }
+
+    @Test
+    void drainTo()
+    {
+        EventRingBuffer<String> buffer = new EventRingBuffer<>(8);
+        for (String element : Arrays.asList("a", "b", "c", "d")) {
+            buffer.offer(element);
+        }
+        List<String> target = new ArrayList<>();
+        assertEquals(3, buffer.drainTo(target, 3));
+        assertEquals(Arrays.asList("a", "b", "c"), target);
+        assertEquals(1, buffer.drainTo(target, 3));
+        assertEquals(0, buffer.drainTo(target, 3));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), target);
+    }
+
+    @Test
+    void concurrentProducersAndConsumers() throws Exception
+    {
+        int producers = 4;
+        int consumers = 4;
+        int elementsPerProducer = 20000;
+        EventRingBuffer<Integer> buffer = new EventRingBuffer<>(64);
+        ConcurrentHashMap<Integer, Boolean> received = new ConcurrentHashMap<>();
+        CountDownLatch produced = new CountDownLatch(producers);
+        ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int first = p * elementsPerProducer;
+            tasks.add(executor.submit(() -> {
+                for (int i = first; i < first + elementsPerProducer; i++) {
+                    while (!buffer.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+                produced.countDown();
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            tasks.add(executor.submit(() -> {
+                while (true) {
+                    Integer element = buffer.poll();
+                    if (element != null) {
+                        assertNull(received.put(element, Boolean.TRUE));
+                    } else if (produced.getCount() == 0 && buffer.size() == 0) {
+                        break;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        assertEquals(producers * elementsPerProducer, received.size());
+    }
+}
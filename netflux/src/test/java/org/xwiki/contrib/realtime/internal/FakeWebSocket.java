@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.function.Consumer;
+
+import org.xwiki.contrib.websocket.WebSocket;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * In-memory {@link WebSocket} used to drive the Netflux backend without a network connection.
+ * 
+ * @version $Id$
+ */
+public class FakeWebSocket implements WebSocket
+{
+    private final Consumer<String> output;
+
+    private volatile Consumer<String> messageHandler;
+
+    private volatile Runnable disconnectHandler;
+
+    /**
+     * @param output receives the frames sent by the backend
+     */
+    public FakeWebSocket(Consumer<String> output)
+    {
+        this.output = output;
+    }
+
+    @Override
+    public DocumentReference getUser()
+    {
+        return null;
+    }
+
+    @Override
+    public String getPath()
+    {
+        return "netflux";
+    }
+
+    @Override
+    public void send(String message)
+    {
+        this.output.accept(message);
+    }
+
+    @Override
+    public void onMessage(Consumer<String> handler)
+    {
+        this.messageHandler = handler;
+    }
+
+    @Override
+    public void onDisconnect(Runnable handler)
+    {
+        this.disconnectHandler = handler;
+    }
+
+    /**
+     * Deliver a frame to the backend, as if it was sent by the client.
+     * 
+     * @param frame the frame
+     */
+    public void receive(String frame)
+    {
+        this.messageHandler.accept(frame);
+    }
+
+    /**
+     * Close the connection, as if the client went away.
+     */
+    public void disconnect()
+    {
+        this.disconnectHandler.run();
+    }
+
+    /**
+     * Forget the handlers registered by the backend, so that the objects reachable from this socket are only the ones
+     * held for the connection (the handlers reference the whole backend). No frame can be received afterwards.
+     */
+    public void detach()
+    {
+        this.messageHandler = null;
+        this.disconnectHandler = null;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link MembershipChanges}.
+ * 
+ * @version $Id$
+ */
+class MembershipChangesTest
+{
+    private final MembershipChanges changes = new MembershipChanges();
+
+    @Test
+    void keepOrder()
+    {
+        this.changes.join("b");
+        this.changes.join("a");
+        this.changes.leave("c");
+
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<>(this.changes.joined));
+        assertEquals(Arrays.asList("c"), new ArrayList<>(this.changes.left));
+    }
+
+    @Test
+    void joinThenLeave()
+    {
+        this.changes.join("a");
+        this.changes.leave("a");
+
+        // The clients that joined during the window already know about the user.
+        assertEquals(Collections.emptyList(), new ArrayList<>(this.changes.joined));
+        assertEquals(Arrays.asList("a"), new ArrayList<>(this.changes.left));
+    }
+
+    @Test
+    void leaveThenJoin()
+    {
+        this.changes.leave("a");
+        this.changes.join("a");
+        this.changes.join("a");
+
+        assertEquals(Arrays.asList("a"), new ArrayList<>(this.changes.joined));
+        assertEquals(Collections.emptyList(), new ArrayList<>(this.changes.left));
+    }
+}
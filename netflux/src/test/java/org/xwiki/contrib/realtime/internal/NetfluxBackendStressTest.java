@@ -0,0 +1,387 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.realtime.script.NetfluxBackendScriptService;
+import org.xwiki.contrib.websocket.WebSocketHandler;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Stress test of {@link NetfluxBackend}: clients connect, enable protocol extensions, join, send messages and
+ * checkpoints, send them again, ping, leave, ask for the history, reconnect and disconnect from several threads in
+ * random order, while channels are created through the script service. The history of the {@code rtwysiwyg} channels
+ * is trimmed. Once the backend is quiet, the test checks that:
+ * <ul>
+ * <li>the observers, which joined the channels before the workload and never leave, received every message once, in
+ * the order it was sent by each sender, whatever their extensions ({@code MEMBERS}, {@code RAW});</li>
+ * <li>the messages sent again were detected as duplicates, including after a reconnection;</li>
+ * <li>the members of each channel known by the observers are its actual members;</li>
+ * <li>the history of each channel is what the observers received, possibly pruned up to a checkpoint or
+ * trimmed;</li>
+ * <li>every request of the connected clients was answered once;</li>
+ * <li>the channel and user registries are consistent, without ghost users.</li>
+ * </ul>
+ * The workload can be tuned with the {@code netflux.stress.threads}, {@code netflux.stress.operations} and
+ * {@code netflux.stress.seed} system properties. The seed is fixed so that the runs are reproducible, pass a
+ * different one to explore other interleavings; it's reported by the failures.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({
+    DefaultNetfluxConfiguration.class,
+    DefaultNetfluxEventPipeline.class,
+    DefaultNetfluxHistoryStore.class,
+    NetfluxBackend.class,
+    NetfluxBackendScriptService.class
+})
+class NetfluxBackendStressTest
+{
+    private static final int THREADS = Integer.getInteger("netflux.stress.threads", 8);
+
+    private static final int OPERATIONS = Integer.getInteger("netflux.stress.operations", 2000);
+
+    private static final long SEED = Long.getLong("netflux.stress.seed", 20260101L);
+
+    private static final List<String> WIKIS = Arrays.asList("wiki1", "wiki2");
+
+    private static final int DOCUMENTS = 10;
+
+    private static final int OBSERVED_CHANNELS = 4;
+
+    private static final long QUIET_TIMEOUT_SECONDS = 30;
+
+    private static final String TRIMMED_TYPE = "rtwysiwyg";
+
+    private static final int MAX_HISTORY_ENTRIES = 20;
+
+    private static final String CHECKPOINT_PREFIX = "cp|[4,[";
+
+    /**
+     * The extensions of the observers, one observer per channel.
+     */
+    private static final List<NetfluxExtension[]> OBSERVER_EXTENSIONS = Arrays.asList(new NetfluxExtension[] {},
+        new NetfluxExtension[] {NetfluxExtension.MEMBERS}, new NetfluxExtension[] {NetfluxExtension.RAW},
+        new NetfluxExtension[] {NetfluxExtension.MEMBERS, NetfluxExtension.RAW});
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private ContextualAuthorizationManager authorization;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    private NetfluxBackend backend;
+
+    private NetfluxBackendScriptService scriptService;
+
+    private final List<String> keys = new CopyOnWriteArrayList<>();
+
+    /**
+     * The messages sent by each client, by channel key then sender name.
+     */
+    private final Map<String, Map<String, List<String>>> sent = new ConcurrentHashMap<>();
+
+    private final List<NetfluxTestClient> connected = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger resent = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        File directory = Files.createTempDirectory("netflux-stress").toFile();
+        when(this.environment.getTemporaryDirectory()).thenReturn(directory);
+        when(this.environment.getPermanentDirectory()).thenReturn(directory);
+        when(this.configurationSource.getProperty(anyString(), any(Object.class)))
+            .thenAnswer(invocation -> invocation.getArgument(1));
+        when(this.configurationSource.getProperty(eq("realtime.netflux.channel." + TRIMMED_TYPE + ".maxHistoryEntries"),
+            any(Object.class))).thenReturn(MAX_HISTORY_ENTRIES);
+        when(this.authorization.hasAccess(any(), any())).thenReturn(true);
+
+        this.backend = this.componentManager.getInstance(WebSocketHandler.class, "realtimeNetflux");
+        this.scriptService = this.componentManager.getInstance(ScriptService.class, "realtime");
+    }
+
+    @Test
+    void randomWorkload() throws Exception
+    {
+        List<NetfluxTestClient> observers = new ArrayList<>();
+        List<String> observedKeys = new ArrayList<>();
+        for (int i = 0; i < OBSERVED_CHANNELS; i++) {
+            String key = getChannelKey(new Random(SEED + i), (i % 2 == 0) ? "rtwiki" : TRIMMED_TYPE);
+            NetfluxTestClient observer = new NetfluxTestClient();
+            observer.connect(this.backend);
+            observer.enableExtensions(OBSERVER_EXTENSIONS.get(i % OBSERVER_EXTENSIONS.size()));
+            observer.join(key);
+            observers.add(observer);
+            observedKeys.add(key);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Random random = new Random(SEED * 31 + i);
+            workers.add(executor.submit(() -> runWorker(random)));
+        }
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            // Keep the observers alive during long runs.
+            observers.forEach(NetfluxTestClient::ping);
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        awaitQuiet(observers);
+
+        for (int i = 0; i < observedKeys.size(); i++) {
+            NetfluxExtension[] extensions = OBSERVER_EXTENSIONS.get(i % OBSERVER_EXTENSIONS.size());
+            checkObserver(observedKeys.get(i), observers.get(i),
+                Arrays.asList(extensions).contains(NetfluxExtension.MEMBERS));
+        }
+        assertEquals((long) this.resent.get(), this.backend.getDiagnostics(0).get("duplicateMessages"),
+            failure("Duplicate messages"));
+        for (NetfluxTestClient client : this.connected) {
+            for (int seq = 1; seq <= client.getLastSequence(); seq++) {
+                assertTrue(client.isAnswered(seq), failure("Request " + seq + " of " + client.getName()));
+            }
+            assertEquals(Collections.emptyList(), client.getErrors(), failure("Protocol errors"));
+        }
+        assertEquals(Collections.emptyList(), this.backend.checkInvariants(), failure("Broken invariants"));
+    }
+
+    private void runWorker(Random random)
+    {
+        NetfluxTestClient client = null;
+        List<String> joined = new ArrayList<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            if (client == null) {
+                client = new NetfluxTestClient();
+                client.connect(this.backend);
+                enableRandomExtensions(client, random);
+                this.connected.add(client);
+                joined.clear();
+                continue;
+            }
+            int operation = random.nextInt(100);
+            if (operation < 22) {
+                String key = this.keys.get(random.nextInt(this.keys.size()));
+                client.join(key);
+                joined.add(key);
+            } else if (operation < 60) {
+                String key = joined.isEmpty() ? this.keys.get(random.nextInt(this.keys.size()))
+                    : joined.get(random.nextInt(joined.size()));
+                sendMessage(client, key, random.nextInt(10) == 0);
+            } else if (operation < 63 && client.canResend()) {
+                client.resend();
+                this.resent.incrementAndGet();
+            } else if (operation < 66) {
+                client.ping();
+            } else if (operation < 75 && !joined.isEmpty()) {
+                client.leave(joined.remove(random.nextInt(joined.size())));
+            } else if (operation < 79 && client.getHistoryKeeper() != null) {
+                client.getHistory(this.keys.get(random.nextInt(this.keys.size())), client.getHistoryKeeper());
+            } else if (operation < 81) {
+                // The messages sent before the reconnection are still detected as duplicates.
+                client.reconnect(this.backend);
+                joined.clear();
+                if (client.canResend()) {
+                    client.resend();
+                    this.resent.incrementAndGet();
+                }
+            } else if (operation < 85) {
+                client.disconnect();
+                this.connected.remove(client);
+                client = null;
+            } else {
+                getChannelKey(random, random.nextBoolean() ? "rtwiki" : TRIMMED_TYPE);
+            }
+        }
+    }
+
+    private void enableRandomExtensions(NetfluxTestClient client, Random random)
+    {
+        List<NetfluxExtension> extensions = new ArrayList<>();
+        for (NetfluxExtension extension : NetfluxExtension.values()) {
+            if (random.nextBoolean()) {
+                extensions.add(extension);
+            }
+        }
+        if (!extensions.isEmpty()) {
+            client.enableExtensions(extensions.toArray(new NetfluxExtension[0]));
+        }
+    }
+
+    private void sendMessage(NetfluxTestClient client, String key, boolean checkpoint)
+    {
+        List<String> messages = this.sent.computeIfAbsent(key, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(client.getName(), name -> new ArrayList<>());
+        String content = (checkpoint ? CHECKPOINT_PREFIX : "") + client.getName() + '|' + messages.size();
+        // Only the sender thread appends to its own list.
+        messages.add(content);
+        client.message(key, content);
+    }
+
+    private String getChannelKey(Random random, String editor)
+    {
+        DocumentReference reference = new DocumentReference(WIKIS.get(random.nextInt(WIKIS.size())), "Space",
+            "Page" + random.nextInt(DOCUMENTS));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> keysByEditor =
+            (Map<String, Object>) this.scriptService.getChannelKey(reference, "default", editor).get("keys");
+        @SuppressWarnings("unchecked")
+        String key = (String) ((Map<String, Object>) keysByEditor.get(editor)).get("key");
+        if (!this.keys.contains(key)) {
+            this.keys.add(key);
+        }
+        return key;
+    }
+
+    private void checkObserver(String key, NetfluxTestClient observer, boolean members) throws Exception
+    {
+        ObjectMapper mapper = new ObjectMapper();
+        List<String> frames = observer.getFrames(key);
+        Map<String, List<String>> received = new HashMap<>();
+        for (String frame : frames) {
+            List<?> elements = mapper.readValue(frame, List.class);
+            if ("MSG".equals(elements.get(2))) {
+                received.computeIfAbsent((String) elements.get(1), name -> new ArrayList<>())
+                    .add((String) elements.get(4));
+            }
+        }
+        Map<String, List<String>> expected = this.sent.getOrDefault(key, Collections.emptyMap());
+        assertEquals(expected, received, failure("Messages of channel " + key));
+
+        Set<String> channelMembers = new HashSet<>(this.backend.getChannel(key).users.keySet());
+        channelMembers.remove(observer.getHistoryKeeper());
+        assertEquals(channelMembers, observer.getMembers(key), failure("Members of channel " + key));
+
+        NetfluxTestClient historyClient = new NetfluxTestClient();
+        historyClient.connect(this.backend);
+        historyClient.setHistoryKeeper(observer.getHistoryKeeper());
+        historyClient.getHistory(key, observer.getHistoryKeeper());
+        await(historyClient::isHistoryComplete, "history of channel " + key);
+        List<String> history = new ArrayList<>(historyClient.getFrames(key));
+        if (members) {
+            // The observer receives the LEAVE coalesced in MEMBERS frames.
+            for (Iterator<String> it = history.iterator(); it.hasNext();) {
+                if (!"MSG".equals(mapper.readValue(it.next(), List.class).get(2))) {
+                    it.remove();
+                }
+            }
+        }
+        // The history is pruned up to the previous checkpoint when a checkpoint is sent, and trimmed up to the last
+        // checkpoint when it's too long.
+        assertTrue(history.size() <= frames.size(), failure("History size of channel " + key));
+        assertEquals(frames.subList(frames.size() - history.size(), frames.size()), history,
+            failure("History of channel " + key));
+        if (history.size() < frames.size()) {
+            boolean trimmed = TRIMMED_TYPE.equals(this.backend.getChannel(key).type);
+            assertTrue(isCheckpoint(mapper, history.get(0)) || (trimmed && history.size() <= MAX_HISTORY_ENTRIES),
+                failure("Start of the history of channel " + key));
+        }
+        historyClient.disconnect();
+    }
+
+    private static boolean isCheckpoint(ObjectMapper mapper, String frame) throws Exception
+    {
+        List<?> elements = mapper.readValue(frame, List.class);
+        return "MSG".equals(elements.get(2)) && ((String) elements.get(4)).startsWith(CHECKPOINT_PREFIX);
+    }
+
+    /**
+     * Wait for the messages still being delivered by the fan-out threads.
+     */
+    private void awaitQuiet(List<NetfluxTestClient> observers) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(QUIET_TIMEOUT_SECONDS);
+        int stableRounds = 0;
+        int lastCount = -1;
+        while (stableRounds < 5 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+            int count = observers.stream().mapToInt(NetfluxTestClient::getFrameCount).sum()
+                + this.connected.stream().mapToInt(NetfluxTestClient::getFrameCount).sum();
+            stableRounds = (count == lastCount) ? stableRounds + 1 : 0;
+            lastCount = count;
+        }
+    }
+
+    private void await(BooleanSupplier condition, String description) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(QUIET_TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, failure("Timeout waiting for the " + description));
+            Thread.sleep(10);
+        }
+    }
+
+    private static String failure(String message)
+    {
+        return message + " (seed " + SEED + ")";
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.websocket.WebSocketHandler;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the memory retained by the Netflux backend for its connections and channels with JOL, using the default
+ * configuration, and reports the footprint of each of them:
+ * <ul>
+ * <li>an idle connection, that has not joined any channel;</li>
+ * <li>a channel descriptor, i.e. a channel that is not loaded (never joined or unloaded after being idle);</li>
+ * <li>an idle editor, i.e. a connection that has joined the channel of a document, its channel being loaded.</li>
+ * </ul>
+ * The objects shared by all the channels (history store, buffer pool) are excluded, as well as the backend handlers
+ * registered on the sockets.
+ * <p>
+ * Usage: {@code NetfluxFootprint [count]} where count is the number of connections and channels of each kind
+ * (10000 by default). Run it from the {@code netflux} module with:
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.xwiki.contrib.realtime.internal.NetfluxFootprint -Dexec.args="10000"
+ * </pre>
+ * 
+ * @version $Id$
+ */
+@ComponentList({
+    DefaultNetfluxConfiguration.class,
+    DefaultNetfluxEventPipeline.class,
+    DefaultNetfluxHistoryStore.class,
+    NetfluxBackend.class
+})
+public class NetfluxFootprint
+{
+    private static final long QUIET_MILLISECONDS = 200;
+
+    private final int count;
+
+    private final AtomicLong receivedFrames = new AtomicLong();
+
+    private final List<FakeWebSocket> sockets = new ArrayList<>();
+
+    private NetfluxBackend backend;
+
+    /**
+     * The size of an object graph.
+     */
+    private static class Footprint
+    {
+        private final long size;
+
+        private final long objects;
+
+        Footprint(GraphLayout layout)
+        {
+            this(layout.totalSize(), layout.totalCount());
+        }
+
+        Footprint(long size, long objects)
+        {
+            this.size = size;
+            this.objects = objects;
+        }
+
+        Footprint minus(Footprint other)
+        {
+            return new Footprint(this.size - other.size, this.objects - other.objects);
+        }
+
+        String perItem(int items)
+        {
+            return String.format("%d bytes, %.1f objects", this.size / items, (double) this.objects / items);
+        }
+    }
+
+    /**
+     * @param count the number of connections and channels of each kind
+     */
+    public NetfluxFootprint(int count)
+    {
+        this.count = count;
+    }
+
+    /**
+     * @param args the optional number of connections and channels of each kind
+     * @throws Exception if the measure fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        System.out.println(VM.current().details());
+        System.out.println(new NetfluxFootprint(count).measure());
+    }
+
+    /**
+     * Measure the footprint of the connections and channels on a new backend.
+     * 
+     * @return the report
+     * @throws Exception if the backend can't be created
+     */
+    public String measure() throws Exception
+    {
+        MockitoComponentManager componentManager = new MockitoComponentManager();
+        componentManager.initializeTest(this);
+        File directory = Files.createTempDirectory("netflux-footprint").toFile();
+        Environment environment = componentManager.registerMockComponent(Environment.class);
+        when(environment.getTemporaryDirectory()).thenReturn(directory);
+        when(environment.getPermanentDirectory()).thenReturn(directory);
+        ConfigurationSource configuration =
+            componentManager.registerMockComponent(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty(anyString(), any(Object.class)))
+            .thenAnswer(invocation -> invocation.getArgument(1));
+        try {
+            this.backend = (NetfluxBackend) componentManager.getInstance(WebSocketHandler.class, "realtimeNetflux");
+            Footprint empty = getFootprint();
+
+            for (int i = 0; i < this.count; i++) {
+                connect();
+            }
+            Footprint connected = getFootprint();
+
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < this.count; i++) {
+                keys.add(this.backend.createChannel("xwiki", "xwiki:Space.Page" + i + "/en", "rtwysiwyg").key);
+            }
+            Footprint described = getFootprint();
+
+            for (String key : keys) {
+                connect().receive(String.format("[1,\"JOIN\",\"%s\"]", key));
+            }
+            Footprint joined = getFootprint();
+
+            Footprint connection = connected.minus(empty);
+            return String.format(
+                "Idle connection: %s%nChannel descriptor: %s%nIdle editor (connection and loaded channel): %s",
+                connection.perItem(this.count), described.minus(connected).perItem(this.count),
+                joined.minus(described).perItem(this.count));
+        } finally {
+            componentManager.dispose();
+        }
+    }
+
+    private FakeWebSocket connect()
+    {
+        // The handler must not capture this tool, which holds the backend and the sockets: they would be measured.
+        AtomicLong received = this.receivedFrames;
+        FakeWebSocket socket = new FakeWebSocket(frame -> received.incrementAndGet());
+        this.sockets.add(socket);
+        this.backend.onConnect(socket);
+        return socket;
+    }
+
+    /**
+     * @return the size of the objects retained for the connections and the channels, once the pending messages are
+     *         sent
+     */
+    private Footprint getFootprint() throws InterruptedException
+    {
+        for (long received = -1; received != this.receivedFrames.get();) {
+            received = this.receivedFrames.get();
+            Thread.sleep(QUIET_MILLISECONDS);
+        }
+        // The sockets measured once don't receive any frame afterwards.
+        this.sockets.forEach(FakeWebSocket::detach);
+        Object users = ReflectionUtils.getFieldValue(this.backend, "users");
+        Object partitions = ReflectionUtils.getFieldValue(this.backend, "partitions");
+        Object historyStore = ReflectionUtils.getFieldValue(this.backend, "historyStore");
+        Object bufferPool = ReflectionUtils.getFieldValue(this.backend, "bufferPool");
+        Object policies = ReflectionUtils.getFieldValue(this.backend, "policies");
+        // The shared objects are reachable from the measured ones, so their size can be subtracted.
+        return new Footprint(GraphLayout.parseInstance(users, partitions, policies))
+            .minus(new Footprint(GraphLayout.parseInstance(historyStore, bufferPool, policies)));
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.websocket.WebSocketHandler;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Replays a traffic log recorded with {@code realtime.netflux.capture.enabled=true} against a fresh Netflux backend,
+ * using the default configuration, and reports the throughput, the latency of the replies and the allocated memory.
+ * <p>
+ * Usage: {@code NetfluxReplay <capture.bin> [speed]} where the speed is a multiplier of the original pace, {@code 0}
+ * (the default) replaying the frames as fast as possible. The captures are written in the {@code netflux/capture}
+ * folder of the XWiki temporary directory. Run it from the {@code netflux} module with:
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.xwiki.contrib.realtime.internal.NetfluxReplay -Dexec.args="/path/to/capture.bin 1"
+ * </pre>
+ * 
+ * @version $Id$
+ */
+@ComponentList({
+    DefaultNetfluxConfiguration.class,
+    DefaultNetfluxEventPipeline.class,
+    DefaultNetfluxHistoryStore.class,
+    NetfluxBackend.class
+})
+public class NetfluxReplay
+{
+    private final double speed;
+
+    private final Map<Integer, Connection> connections = new HashMap<>();
+
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+    private int frames;
+
+    /**
+     * The result of a replay.
+     */
+    public static class Report
+    {
+        private final int frames;
+
+        private final int connections;
+
+        private final long elapsedNanos;
+
+        private final long[] latencies;
+
+        private final long allocatedBytes;
+
+        Report(int frames, int connections, long elapsedNanos, List<Long> latencies, long allocatedBytes)
+        {
+            this.frames = frames;
+            this.connections = connections;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /**
+         * @return the number of frames received per second
+         */
+        public double getThroughput()
+        {
+            return this.frames * 1e9 / Math.max(1, this.elapsedNanos);
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @return the latency of the replies at the given percentile, in nanoseconds
+         */
+        public long getLatency(double percentile)
+        {
+            if (this.latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * this.latencies.length) - 1;
+            return this.latencies[Math.max(0, Math.min(index, this.latencies.length - 1))];
+        }
+
+        /**
+         * @return the number of bytes allocated by the live threads during the replay, {@code -1} if the JVM doesn't
+         *         provide it
+         */
+        public long getAllocatedBytes()
+        {
+            return this.allocatedBytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(
+                "Replayed %d frames from %d connections in %d ms (%.0f frames/s)%n"
+                    + "Latency of %d replies: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n" + "Allocated: %d bytes",
+                this.frames, this.connections, TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos), getThroughput(),
+                this.latencies.length, getLatency(50) / 1e6, getLatency(99) / 1e6, getLatency(100) / 1e6,
+                this.allocatedBytes);
+        }
+    }
+
+    /**
+     * A replayed connection, matching the replies to the frames that were sent.
+     */
+    private class Connection
+    {
+        private final FakeWebSocket socket = new FakeWebSocket(this::onReply);
+
+        private final Map<Integer, Long> sentTimes = new ConcurrentHashMap<>();
+
+        void send(String frame)
+        {
+            int seq = getSequence(frame);
+            if (seq > 0) {
+                this.sentTimes.put(seq, System.nanoTime());
+            }
+            this.socket.receive(frame);
+        }
+
+        private void onReply(String frame)
+        {
+            Long sentTime = this.sentTimes.remove(getSequence(frame));
+            if (sentTime != null) {
+                latencies.add(System.nanoTime() - sentTime);
+            }
+        }
+    }
+
+    /**
+     * @param speed the multiplier of the original pace, {@code 0} to replay the frames as fast as possible
+     */
+    public NetfluxReplay(double speed)
+    {
+        this.speed = speed;
+    }
+
+    /**
+     * @param args the traffic log and the optional speed
+     * @throws Exception if the replay fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 0) {
+            System.err.println("Usage: NetfluxReplay <capture.bin> [speed]");
+            System.exit(1);
+        }
+        double speed = (args.length > 1) ? Double.parseDouble(args[1]) : 0;
+        System.out.println(new NetfluxReplay(speed).replay(new File(args[0])));
+    }
+
+    /**
+     * Replay a traffic log against a new backend.
+     * 
+     * @param log the traffic log
+     * @return the report
+     * @throws Exception if the backend can't be created or the log can't be read
+     */
+    public Report replay(File log) throws Exception
+    {
+        MockitoComponentManager componentManager = new MockitoComponentManager();
+        componentManager.initializeTest(this);
+        File directory = Files.createTempDirectory("netflux-replay").toFile();
+        Environment environment = componentManager.registerMockComponent(Environment.class);
+        when(environment.getTemporaryDirectory()).thenReturn(directory);
+        when(environment.getPermanentDirectory()).thenReturn(directory);
+        ConfigurationSource configuration =
+            componentManager.registerMockComponent(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty(anyString(), any(Object.class)))
+            .thenAnswer(invocation -> invocation.getArgument(1));
+
+        try {
+            WebSocketHandler backend = componentManager.getInstance(WebSocketHandler.class, "realtimeNetflux");
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            TrafficLog.read(log, record -> {
+                waitUntil(start, record.time);
+                switch (record.type) {
+                    case TrafficLog.CONNECT:
+                        Connection connection = new Connection();
+                        this.connections.put(record.connection, connection);
+                        backend.onConnect(connection.socket);
+                        break;
+                    case TrafficLog.MESSAGE:
+                        this.frames++;
+                        this.connections.get(record.connection).send(record.frame);
+                        break;
+                    default:
+                        this.connections.get(record.connection).socket.disconnect();
+                        break;
+                }
+            });
+            long elapsed = System.nanoTime() - start;
+            long allocatedAfter = getAllocatedBytes();
+            return new Report(this.frames, this.connections.size(), elapsed, this.latencies,
+                allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore);
+        } finally {
+            componentManager.dispose();
+        }
+    }
+
+    private void waitUntil(long start, long recordTime)
+    {
+        if (this.speed > 0) {
+            long due = start + (long) (recordTime / this.speed);
+            for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    private static int getSequence(String frame)
+    {
+        int seq = 0;
+        for (int i = 1; i < frame.length() && Character.isDigit(frame.charAt(i)); i++) {
+            seq = seq * 10 + frame.charAt(i) - '0';
+        }
+        return seq;
+    }
+
+    /**
+     * @return the number of bytes allocated by the live threads, {@code -1} if the JVM doesn't provide it
+     */
+    private static long getAllocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) threads)
+            .getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.websocket.WebSocketHandler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A Netflux client connected to the backend through a {@link FakeWebSocket}. The requests are sent from the calling
+ * thread while the frames sent by the backend can be received from any thread, so the received state is guarded by
+ * the client monitor. The client keeps track of the members of the channels it joined, from the JOIN, LEAVE and
+ * MEMBERS frames, and understands the raw frames.
+ * 
+ * @version $Id$
+ */
+public class NetfluxTestClient
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String CMD_MSG = "MSG";
+
+    private static final String CMD_LEAVE = "LEAVE";
+
+    private static final String CMD_JOIN = "JOIN";
+
+    private static final String CMD_IDENT = "IDENT";
+
+    private static final int HISTORY_KEEPER_NAME_LENGTH = 16;
+
+    private static final long ANSWER_TIMEOUT_SECONDS = 10;
+
+    private FakeWebSocket socket = new FakeWebSocket(this::onFrame);
+
+    private final Map<String, List<String>> channelFrames = new HashMap<>();
+
+    private final Map<String, Set<String>> members = new HashMap<>();
+
+    private final Set<Integer> answered = new HashSet<>();
+
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * The sequence numbers of the requests answered with an ERROR.
+     */
+    private final Set<Integer> refused = new HashSet<>();
+
+    private String name;
+
+    private String historyKeeper;
+
+    private boolean historyComplete;
+
+    private int frameCount;
+
+    private int seq;
+
+    private String session;
+
+    /**
+     * The session id given by the backend in the IDENT message of the current connection.
+     */
+    private String connectionSession;
+
+    private boolean raw;
+
+    /**
+     * The last MSG frame sent, {@code null} if it can't be sent again as a duplicate (the channel was left since).
+     */
+    private String lastMessage;
+
+    private String lastMessageKey;
+
+    private int lastMessageSeq;
+
+    private String lastSent;
+
+    /**
+     * Open the connection.
+     * 
+     * @param backend the backend
+     */
+    public void connect(WebSocketHandler backend)
+    {
+        backend.onConnect(this.socket);
+    }
+
+    /**
+     * Close the connection.
+     */
+    public void disconnect()
+    {
+        this.socket.disconnect();
+    }
+
+    /**
+     * Open a new connection once the requests sent on the current one are answered, close the current one and resume
+     * the session on the new one. The channels have to be joined again. When the backend doesn't know the session
+     * anymore, the client continues with the session of the new connection and its last message can't be sent again.
+     * 
+     * @param backend the backend
+     * @return the sequence number of the IDENT request
+     */
+    public int reconnect(WebSocketHandler backend)
+    {
+        awaitAnswers();
+        this.socket.disconnect();
+        synchronized (this) {
+            this.members.clear();
+        }
+        this.socket = new FakeWebSocket(this::onFrame);
+        backend.onConnect(this.socket);
+        int identSeq = send(CMD_IDENT, getSession());
+        awaitAnswers();
+        synchronized (this) {
+            if (this.refused.contains(identSeq)) {
+                // The session was never used or it expired: the backend doesn't know the previous messages anymore.
+                this.session = this.connectionSession;
+                this.lastMessage = null;
+            }
+        }
+        return identSeq;
+    }
+
+    /**
+     * Enable protocol extensions. The messages are sent as raw frames once {@link NetfluxExtension#RAW} is enabled.
+     * 
+     * @param extensions the extensions to enable
+     * @return the sequence number of the request
+     */
+    public int enableExtensions(NetfluxExtension... extensions)
+    {
+        List<String> names = new ArrayList<>();
+        for (NetfluxExtension extension : extensions) {
+            names.add(extension.name());
+            if (extension == NetfluxExtension.RAW) {
+                this.raw = true;
+            }
+        }
+        return send("EXT", names);
+    }
+
+    /**
+     * @param key the channel key
+     * @return the sequence number of the request
+     */
+    public int join(String key)
+    {
+        return send(CMD_JOIN, key);
+    }
+
+    /**
+     * @param key the channel key
+     * @return the sequence number of the request
+     */
+    public int leave(String key)
+    {
+        if (key.equals(this.lastMessageKey)) {
+            // The backend forgets the messages sent to the channels that are left.
+            this.lastMessage = null;
+        }
+        return send(CMD_LEAVE, key);
+    }
+
+    /**
+     * @param key the channel key or user name
+     * @param content the message content
+     * @return the sequence number of the request
+     */
+    public int message(String key, Object content)
+    {
+        if (this.raw && content instanceof String) {
+            int messageSeq = ++this.seq;
+            deliver(RawFrame.format(toJSON(Arrays.asList(messageSeq, CMD_MSG, key)), (String) content));
+        } else {
+            send(CMD_MSG, key, content);
+        }
+        this.lastMessage = this.lastSent;
+        this.lastMessageKey = key;
+        this.lastMessageSeq = this.seq;
+        return this.seq;
+    }
+
+    /**
+     * @return {@code true} if the last message can be sent again, see {@link #resend()}
+     */
+    public boolean canResend()
+    {
+        return this.lastMessage != null;
+    }
+
+    /**
+     * Send the last message again, with the same sequence number, as a client does when it doesn't get the ACK
+     * before reconnecting. The backend ACKs it again but doesn't relay it.
+     * 
+     * @return the sequence number of the message
+     */
+    public int resend()
+    {
+        awaitAnswers();
+        synchronized (this) {
+            this.answered.remove(this.lastMessageSeq);
+        }
+        deliver(this.lastMessage);
+        return this.lastMessageSeq;
+    }
+
+    /**
+     * Ask the history keeper for the history of a channel.
+     * 
+     * @param key the channel key
+     * @param keeper the name of the history keeper
+     * @return the sequence number of the request
+     */
+    public int getHistory(String key, String keeper)
+    {
+        return send(CMD_MSG, keeper, toJSON(Arrays.asList("GET_HISTORY", key)));
+    }
+
+    /**
+     * Send a PING.
+     */
+    public void ping()
+    {
+        send("PING");
+    }
+
+    private int send(Object... elements)
+    {
+        List<Object> frame = new ArrayList<>();
+        frame.add(++this.seq);
+        frame.addAll(Arrays.asList(elements));
+        deliver(toJSON(frame));
+        return this.seq;
+    }
+
+    private void deliver(String frame)
+    {
+        this.lastSent = frame;
+        this.socket.receive(frame);
+    }
+
+    private static String toJSON(Object value)
+    {
+        try {
+            return MAPPER.writeValueAsString(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Wait for the answers to all the requests sent so far.
+     */
+    private void awaitAnswers()
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(ANSWER_TIMEOUT_SECONDS);
+        for (int requestSeq = 1; requestSeq <= this.seq; requestSeq++) {
+            while (!isAnswered(requestSeq)) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("No answer to request " + requestSeq);
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    private synchronized void onFrame(String received)
+    {
+        this.frameCount++;
+        String frame = received;
+        List<?> elements;
+        try {
+            if (RawFrame.isRaw(frame)) {
+                elements = RawFrame.parse(frame, MAPPER);
+                // Record the frame as if it was sent as JSON, to compare it with the other clients.
+                frame = toJSON(elements);
+            } else {
+                elements = MAPPER.readValue(frame, List.class);
+            }
+        } catch (IOException e) {
+            this.errors.add("Invalid frame: " + frame);
+            return;
+        }
+        int frameSeq = (Integer) elements.get(0);
+        String cmd = String.valueOf(elements.get(frameSeq == 0 ? 2 : 1));
+        if (frameSeq != 0) {
+            if (!this.answered.add(frameSeq)) {
+                this.errors.add("Request answered twice: " + frame);
+            }
+            if ("ERROR".equals(cmd)) {
+                this.refused.add(frameSeq);
+            }
+            if ("ERROR".equals(cmd) && "ERANGE".equals(elements.get(2))) {
+                this.errors.add("Message out of the sequence window: " + frame);
+            }
+        } else if (CMD_IDENT.equals(cmd)) {
+            this.name = (String) elements.get(3);
+            if (elements.size() > 5) {
+                this.connectionSession = (String) elements.get(5);
+            }
+            if (this.session == null) {
+                this.session = this.connectionSession;
+            }
+        } else if ("MEMBERS".equals(cmd)) {
+            Set<String> channelMembers = membersOf((String) elements.get(3));
+            // Joined members first.
+            addMembers(channelMembers, (List<?>) elements.get(4));
+            channelMembers.removeAll((List<?>) elements.get(5));
+        } else if (CMD_JOIN.equals(cmd) && ((String) elements.get(1)).length() == HISTORY_KEEPER_NAME_LENGTH) {
+            this.historyKeeper = (String) elements.get(1);
+        } else if (CMD_JOIN.equals(cmd)) {
+            membersOf((String) elements.get(3)).add((String) elements.get(1));
+        } else if (CMD_MSG.equals(cmd) && elements.get(1).equals(this.historyKeeper)) {
+            this.historyComplete = true;
+        } else if (CMD_MSG.equals(cmd) || CMD_LEAVE.equals(cmd)) {
+            this.channelFrames.computeIfAbsent((String) elements.get(3), key -> new ArrayList<>()).add(frame);
+            if (CMD_LEAVE.equals(cmd)) {
+                membersOf((String) elements.get(3)).remove(elements.get(1));
+            }
+        }
+    }
+
+    private Set<String> membersOf(String key)
+    {
+        return this.members.computeIfAbsent(key, k -> new HashSet<>());
+    }
+
+    private void addMembers(Set<String> channelMembers, List<?> joined)
+    {
+        for (Object member : joined) {
+            // The history keeper is not a member for the clients.
+            if (((String) member).length() == HISTORY_KEEPER_NAME_LENGTH) {
+                this.historyKeeper = (String) member;
+            } else {
+                channelMembers.add((String) member);
+            }
+        }
+    }
+
+    /**
+     * @return the name given by the backend in the IDENT message
+     */
+    public synchronized String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * @return the session id given by the backend in the first IDENT message, or in the IDENT message of the
+     *         connection opened when the session couldn't be resumed
+     */
+    public synchronized String getSession()
+    {
+        return this.session;
+    }
+
+    /**
+     * @param key a channel key
+     * @return the members of the channel, as known from the frames received by this client
+     */
+    public synchronized Set<String> getMembers(String key)
+    {
+        return new HashSet<>(this.members.getOrDefault(key, new HashSet<>()));
+    }
+
+    /**
+     * @return the name of the history keeper, known once a channel is joined
+     */
+    public synchronized String getHistoryKeeper()
+    {
+        return this.historyKeeper;
+    }
+
+    /**
+     * Set the name of the history keeper, for the clients that ask for the history without joining the channel.
+     * 
+     * @param keeper the name of the history keeper
+     */
+    public synchronized void setHistoryKeeper(String keeper)
+    {
+        this.historyKeeper = keeper;
+    }
+
+    /**
+     * @return {@code true} if the end of the requested history was received
+     */
+    public synchronized boolean isHistoryComplete()
+    {
+        return this.historyComplete;
+    }
+
+    /**
+     * @return the number of frames received
+     */
+    public synchronized int getFrameCount()
+    {
+        return this.frameCount;
+    }
+
+    /**
+     * @param key a channel key
+     * @return the MSG and LEAVE frames received on the channel, in order
+     */
+    public synchronized List<String> getFrames(String key)
+    {
+        return new ArrayList<>(this.channelFrames.getOrDefault(key, new ArrayList<>()));
+    }
+
+    /**
+     * @return the sequence number of the last request
+     */
+    public int getLastSequence()
+    {
+        return this.seq;
+    }
+
+    /**
+     * @param requestSeq the sequence number of a request
+     * @return {@code true} if the request was answered with an ACK, a JACK or an ERROR
+     */
+    public synchronized boolean isAnswered(int requestSeq)
+    {
+        return this.answered.contains(requestSeq);
+    }
+
+    /**
+     * @return the protocol errors detected by the client
+     */
+    public synchronized List<String> getErrors()
+    {
+        return new ArrayList<>(this.errors);
+    }
+}
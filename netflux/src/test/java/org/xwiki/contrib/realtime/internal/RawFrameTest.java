@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link RawFrame}.
+ * 
+ * @version $Id$
+ */
+class RawFrameTest
+{
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void isRaw()
+    {
+        assertTrue(RawFrame.isRaw("12:[1,\"MSG\",\"k\"]x"));
+        assertFalse(RawFrame.isRaw("[1,\"PING\"]"));
+        assertFalse(RawFrame.isRaw(""));
+    }
+
+    @Test
+    void formatAndParse() throws Exception
+    {
+        String header = "[0,\"user\",\"MSG\",\"key\"]";
+        String payload = "cp|[4,[\"quoted\\\" \u00e9\"]]";
+        String frame = RawFrame.format(header, payload);
+
+        assertEquals(header.length() + ":" + header + payload, frame);
+        assertEquals(frame.indexOf(':') + 1 + header.length(), RawFrame.getPayloadStart(frame));
+        assertEquals(Arrays.asList(0, "user", "MSG", "key", payload), RawFrame.parse(frame, this.mapper));
+    }
+
+    @Test
+    void emptyPayload() throws Exception
+    {
+        String frame = RawFrame.format("[1,\"MSG\",\"key\"]", "");
+
+        assertEquals(frame.length(), RawFrame.getPayloadStart(frame));
+        assertEquals(Arrays.asList(1, "MSG", "key", ""), RawFrame.parse(frame, this.mapper));
+    }
+
+    @Test
+    void invalidHeaderLength()
+    {
+        assertEquals(-1, RawFrame.getPayloadStart("99:[1,\"MSG\"]"));
+        assertEquals(-1, RawFrame.getPayloadStart("1x:[1,\"MSG\"]"));
+        assertEquals(-1, RawFrame.getPayloadStart("12"));
+        assertThrows(IOException.class, () -> RawFrame.parse("99:[1,\"MSG\"]", this.mapper));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link SequenceWindow}.
+ * 
+ * @version $Id$
+ */
+class SequenceWindowTest
+{
+    private final SequenceWindow window = new SequenceWindow();
+
+    @Test
+    void acceptInOrder()
+    {
+        for (int seq = 1; seq <= 200; seq++) {
+            assertTrue(this.window.accept(seq));
+            assertFalse(this.window.accept(seq));
+        }
+    }
+
+    @Test
+    void acceptOutOfOrder()
+    {
+        assertTrue(this.window.accept(10));
+        assertTrue(this.window.accept(7));
+        assertTrue(this.window.accept(12));
+        assertTrue(this.window.accept(11));
+        assertTrue(this.window.accept(8));
+
+        assertFalse(this.window.accept(7));
+        assertFalse(this.window.accept(10));
+        assertFalse(this.window.accept(12));
+        assertTrue(this.window.accept(9));
+    }
+
+    @Test
+    void firstSequenceNumber()
+    {
+        // The window doesn't assume that the client starts at 1, after resuming a session for instance.
+        assertTrue(this.window.accept(-5));
+        assertTrue(this.window.accept(0));
+        assertFalse(this.window.isTooOld(-5));
+        assertFalse(this.window.accept(-5));
+    }
+
+    @Test
+    void tooOld()
+    {
+        assertTrue(this.window.accept(100));
+        assertFalse(this.window.isTooOld(101));
+        assertFalse(this.window.isTooOld(37));
+        assertTrue(this.window.accept(37));
+        assertTrue(this.window.isTooOld(36));
+        assertFalse(this.window.accept(36));
+
+        // Sliding the window by more than its size forgets all the previous sequence numbers.
+        assertTrue(this.window.accept(1000));
+        assertTrue(this.window.isTooOld(100));
+        assertFalse(this.window.isTooOld(999));
+        assertTrue(this.window.accept(999));
+    }
+
+    @Test
+    void wrapAround()
+    {
+        assertTrue(this.window.accept(Integer.MAX_VALUE - 1));
+        assertTrue(this.window.accept(Integer.MIN_VALUE));
+        assertTrue(this.window.accept(Integer.MAX_VALUE));
+        assertFalse(this.window.accept(Integer.MAX_VALUE - 1));
+        assertFalse(this.window.accept(Integer.MIN_VALUE));
+        assertFalse(this.window.isTooOld(Integer.MAX_VALUE - 62));
+        assertTrue(this.window.isTooOld(Integer.MAX_VALUE - 63));
+
+        assertTrue(this.window.accept(Integer.MIN_VALUE + 1));
+        assertFalse(this.window.isTooOld(Integer.MAX_VALUE));
+        assertFalse(this.window.accept(Integer.MAX_VALUE));
+    }
+}
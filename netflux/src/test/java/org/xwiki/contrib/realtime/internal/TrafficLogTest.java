@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.realtime.internal;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link TrafficLog}.
+ * 
+ * @version $Id$
+ */
+class TrafficLogTest
+{
+    private static final String KEEPER = "0123456789abcdef";
+
+    @Test
+    void redactJsonFrame()
+    {
+        assertEquals("[3,\"MSG\",\"key\",\"xxxxxxxxxxx\"]",
+            TrafficLog.redact("[3,\"MSG\",\"key\",\"hello world\"]", KEEPER));
+        assertEquals("[3,\"MSG\",\"key\",\"cp|[4,[xxxxx\"]",
+            TrafficLog.redact("[3,\"MSG\",\"key\",\"cp|[4,[1,2]]\"]", KEEPER));
+        assertEquals("[4,\"JOIN\",\"key\"]", TrafficLog.redact("[4,\"JOIN\",\"key\"]", KEEPER));
+
+        // The frames are parsed, whatever their formatting and the type of the payload.
+        assertEquals("[ 3 , \"MSG\" , \"key\" , \"xxxxxxxxxxxxxx\"]",
+            TrafficLog.redact("[ 3 , \"MSG\" , \"key\" , \"hello \\\"world\" ]", KEEPER));
+        assertEquals("[3,\"MSG\",\"key\",\"xxxxxxxxxxxxxx\"]",
+            TrafficLog.redact("[3,\"MSG\",\"key\",{\"a\":1},\"secret\"]", KEEPER));
+    }
+
+    @Test
+    void keepHistoryKeeperRequests()
+    {
+        String request = "[5,\"MSG\",\"" + KEEPER + "\",\"[\\\"GET_HISTORY\\\",\\\"key\\\"]\"]";
+        assertEquals(request, TrafficLog.redact(request, KEEPER));
+    }
+
+    @Test
+    void dropInvalidFrames()
+    {
+        assertNull(TrafficLog.redact("[3,\"MSG\",\"key\",\"secret\"", KEEPER));
+        assertNull(TrafficLog.redact("[3,\"MSG\",\"key\",\"secret\"] [\"secret\"]", KEEPER));
+        assertNull(TrafficLog.redact("{\"MSG\":\"secret\"}", KEEPER));
+    }
+
+    @Test
+    void redactRawFrame()
+    {
+        String header = "[3,\"MSG\",\"key\"]";
+        String redacted = TrafficLog.redact(RawFrame.format(header, "hello \"world\""), KEEPER);
+        assertEquals(RawFrame.format(header, "xxxxxxxxxxxxx"), redacted);
+        assertEquals(RawFrame.format(header, "cp|[4,[xxxxx"),
+            TrafficLog.redact(RawFrame.format(header, "cp|[4,[1,2]]"), KEEPER));
+
+        // Invalid raw frames are dropped.
+        assertNull(TrafficLog.redact("99:[3,\"MSG\"]x", KEEPER));
+        assertNull(TrafficLog.redact(RawFrame.format("[3,\"MSG\",\"key\",\"secret\"]", "payload"), KEEPER));
+    }
+
+    @Test
+    void stopAtMaxSize() throws Exception
+    {
+        File file = Files.createTempFile("traffic", ".bin").toFile();
+        try {
+            TrafficLog.Writer writer =
+                new TrafficLog.Writer(file, false, 100, KEEPER, LoggerFactory.getLogger(getClass()));
+            int connection = writer.connect();
+            for (int i = 0; i < 10; i++) {
+                writer.message(connection, "[" + i + ",\"PING\"]");
+            }
+            writer.close();
+
+            List<TrafficLog.Record> records = new ArrayList<>();
+            TrafficLog.read(file, records::add);
+            // 12 bytes of header, 13 bytes for the connection and 27 bytes per PING: the third PING reaches the limit.
+            assertEquals(4, records.size());
+            assertTrue(file.length() >= 100);
+        } finally {
+            file.delete();
+        }
+    }
+}